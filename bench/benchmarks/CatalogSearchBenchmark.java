@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the six best matches for one query in catalogs of 10^2 to 10^6
+ * images: a compareImages call per catalog image (the original search) against
+ * the packed FeatureMatrix scan.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class CatalogSearchBenchmark {
+
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    public int catalogSize;
+
+    private List<Object> catalog;
+    private Object matrix;
+    private Object query;
+    private float[] encodedQuery;
+
+    @Setup
+    public void setUp() throws Throwable {
+        catalog = Subjects.randomFeatures(catalogSize, 500, 11);
+        List<String> names = new ArrayList<>(catalogSize);
+        for (int i = 0; i < catalogSize; i++) {
+            names.add("attraction-" + i);
+        }
+        matrix = (Object) Subjects.NEW_MATRIX.invokeExact((List) names, (List) catalog);
+        query = Subjects.randomFeatures(1, 500, 12).get(0);
+        encodedQuery = (float[]) Subjects.ENCODE_QUERY.invokeExact(query);
+    }
+
+    @Benchmark
+    public double compareImagesScan() throws Throwable {
+        double best = Double.NEGATIVE_INFINITY;
+        for (Object candidate : catalog) {
+            best = Math.max(best, (double) Subjects.COMPARE_IMAGES.invokeExact(query, candidate));
+        }
+        return best;
+    }
+
+    @Benchmark
+    public Object featureMatrixTopK() throws Throwable {
+        return (Object) Subjects.TOP_K.invokeExact(matrix, encodedQuery, 6);
+    }
+}
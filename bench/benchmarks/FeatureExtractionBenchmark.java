@@ -0,0 +1,42 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of extracting color, edge and spatial features from one image, for
+ * synthetic and real catalog photos at several resolutions (longer side in pixels).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FeatureExtractionBenchmark {
+
+    @Param({"synthetic", "real"})
+    public String source;
+
+    @Param({"256", "512", "1024", "2048"})
+    public int resolution;
+
+    private List<BufferedImage> images;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        images = "real".equals(source)
+                ? Subjects.realImages(resolution)
+                : List.of(Subjects.syntheticImage(resolution, resolution * 3 / 4, 42));
+    }
+
+    @Benchmark
+    public Object extractFeatures() throws Throwable {
+        BufferedImage image = images.get(next++ % images.size());
+        return (Object) Subjects.EXTRACT_FEATURES.invokeExact(image);
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the KNN image graph from precomputed 80-dimensional feature
+ * vectors. Graphs below 5000 images compare every pair; larger ones go through
+ * NN-Descent. Run 10^6 on its own with a larger heap, e.g.
+ * {@code -p nodes=1000000 -jvmArgsAppend -Xmx8g}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class KnnGraphBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int nodes;
+
+    private List<double[]> features;
+    private List<String> names;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(5);
+        features = new ArrayList<>(nodes);
+        names = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            double[] vector = new double[Subjects.COLOR_SIZE + Subjects.EDGE_SIZE + Subjects.SPATIAL_SIZE];
+            for (int d = 0; d < vector.length; d++) {
+                vector[d] = random.nextDouble();
+            }
+            features.add(vector);
+            names.add("attraction-" + i);
+        }
+    }
+
+    @Benchmark
+    public Object buildKNNGraph() throws Throwable {
+        return (Object) Subjects.BUILD_KNN_GRAPH.invokeExact((List) features, (List) names);
+    }
+}
@@ -0,0 +1,42 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints how many of the true nearest neighbours the approximate structures find,
+ * measured against brute force on a synthetic clustered catalog: recall@6 and
+ * query latency of the HNSW search index, and recall@5 of the NN-Descent KNN
+ * graph. Not a JMH benchmark; run it directly, optionally with the catalog size:
+ * {@code java -cp out/app:out/bench benchmarks.SearchRecallReport 100000}.
+ */
+public final class SearchRecallReport {
+    private static final int QUERIES = 500;
+
+    private SearchRecallReport() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        List<Object> catalog = Subjects.randomFeatures(size, 20, 11);
+        List<String> names = new ArrayList<>(size);
+        List<double[]> vectors = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            names.add("attraction-" + i);
+            vectors.add((double[]) Subjects.FLATTEN.invokeExact(catalog.get(i)));
+        }
+
+        Object matrix = (Object) Subjects.NEW_MATRIX.invokeExact((List) names, (List) catalog);
+        long start = System.nanoTime();
+        Object hnsw = (Object) Subjects.BUILD_HNSW.invokeExact(matrix, 16, 200, 64);
+        System.out.printf("HNSW over %d images, built in %.1f s%n", size, (System.nanoTime() - start) / 1e9);
+        System.out.println("  " + (Object) Subjects.HNSW_RECALL.invokeExact(hnsw, QUERIES, 6, 1L));
+
+        start = System.nanoTime();
+        Object graph = (Object) Subjects.BUILD_NN_DESCENT.invokeExact(vectors, 5, 42L);
+        System.out.printf("NN-Descent KNN graph over %d images, built in %.1f s%n", size,
+                (System.nanoTime() - start) / 1e9);
+        System.out.printf("  recall@5 over %d nodes: %.4f%n", QUERIES,
+                (double) Subjects.NN_DESCENT_RECALL.invokeExact(graph, QUERIES, 1L));
+    }
+}
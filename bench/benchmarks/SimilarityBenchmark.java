@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of comparing two images' features: the weighted three-family score and
+ * the underlying cosine similarity of one feature block.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimilarityBenchmark {
+    private Object first;
+    private Object second;
+    private double[] firstSpatial;
+    private double[] secondSpatial;
+
+    @Setup
+    public void setUp() throws Throwable {
+        List<Object> features = Subjects.randomFeatures(2, 0, 7);
+        first = features.get(0);
+        second = features.get(1);
+        firstSpatial = new double[Subjects.SPATIAL_SIZE];
+        secondSpatial = new double[Subjects.SPATIAL_SIZE];
+        for (int i = 0; i < Subjects.SPATIAL_SIZE; i++) {
+            firstSpatial[i] = Math.sin(i);
+            secondSpatial[i] = Math.cos(i);
+        }
+    }
+
+    @Benchmark
+    public double compareImages() throws Throwable {
+        return (double) Subjects.COMPARE_IMAGES.invokeExact(first, second);
+    }
+
+    @Benchmark
+    public double cosineSimilarity() throws Throwable {
+        return (double) Subjects.COSINE_SIMILARITY.invokeExact(firstSpatial, secondSpatial);
+    }
+}
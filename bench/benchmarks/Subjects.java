@@ -0,0 +1,201 @@
+package benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Entry points of the application classes under test. The application lives in
+ * the default package, which named packages (required by JMH) cannot reference,
+ * so each entry point is bound once as a constant method handle. The JIT inlines
+ * constant handles, so calls cost the same as direct calls. Application types
+ * are passed around as Object.
+ */
+final class Subjects {
+    static final int COLOR_SIZE = 24;
+    static final int EDGE_SIZE = 8;
+    static final int SPATIAL_SIZE = 48;
+
+    // ImageFeatures extractFeatures(BufferedImage)
+    static final MethodHandle EXTRACT_FEATURES;
+    // double compareImages(ImageFeatures, ImageFeatures)
+    static final MethodHandle COMPARE_IMAGES;
+    // double VectorKernels.cosine(double[], double[])
+    static final MethodHandle COSINE_SIMILARITY;
+    // ImageFeatures(double[], double[], double[])
+    static final MethodHandle NEW_FEATURES;
+    // FeatureMatrix(List<String>, List<ImageFeatures>)
+    static final MethodHandle NEW_MATRIX;
+    // float[] FeatureMatrix.encodeQuery(ImageFeatures)
+    static final MethodHandle ENCODE_QUERY;
+    // TopKSelector FeatureMatrix.topK(float[], int)
+    static final MethodHandle TOP_K;
+    // ImageGraph KNNImageGraph.buildKNNGraphFromFeatures(List<double[]>, List<String>)
+    static final MethodHandle BUILD_KNN_GRAPH;
+    // double[] KNNImageGraph.flatten(ImageFeatures)
+    static final MethodHandle FLATTEN;
+    // HnswIndex HnswIndex.build(FeatureMatrix, int, int, int)
+    static final MethodHandle BUILD_HNSW;
+    // RecallReport HnswIndex.measureRecall(int, int, long)
+    static final MethodHandle HNSW_RECALL;
+    // NNDescent NNDescent.build(List<double[]>, int, long)
+    static final MethodHandle BUILD_NN_DESCENT;
+    // double NNDescent.measureRecall(int, long)
+    static final MethodHandle NN_DESCENT_RECALL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> comparator = Class.forName("AdvancedImageComparator");
+            Class<?> features = Class.forName("AdvancedImageComparator$ImageFeatures");
+            Class<?> matrix = Class.forName("FeatureMatrix");
+            Class<?> selector = Class.forName("TopKSelector");
+            Class<?> knn = Class.forName("KNNImageGraph");
+            Class<?> graph = Class.forName("KNNImageGraph$ImageGraph");
+            Class<?> hnsw = Class.forName("HnswIndex");
+            Class<?> nnDescent = Class.forName("NNDescent");
+
+            EXTRACT_FEATURES = generic(lookup.findStatic(comparator, "extractFeatures",
+                    MethodType.methodType(features, BufferedImage.class)));
+            COMPARE_IMAGES = generic(lookup.findStatic(comparator, "compareImages",
+                    MethodType.methodType(double.class, features, features)));
+            COSINE_SIMILARITY = lookup.findStatic(Class.forName("VectorKernels"), "cosine",
+                    MethodType.methodType(double.class, double[].class, double[].class));
+            NEW_FEATURES = generic(lookup.findConstructor(features,
+                    MethodType.methodType(void.class, double[].class, double[].class, double[].class)));
+            NEW_MATRIX = generic(lookup.findConstructor(matrix,
+                    MethodType.methodType(void.class, List.class, List.class)));
+            ENCODE_QUERY = generic(lookup.findStatic(matrix, "encodeQuery",
+                    MethodType.methodType(float[].class, features)));
+            TOP_K = generic(lookup.findVirtual(matrix, "topK",
+                    MethodType.methodType(selector, float[].class, int.class)));
+            BUILD_KNN_GRAPH = generic(lookup.findStatic(knn, "buildKNNGraphFromFeatures",
+                    MethodType.methodType(graph, List.class, List.class)));
+            FLATTEN = generic(lookup.findStatic(knn, "flatten", MethodType.methodType(double[].class, features)));
+            BUILD_HNSW = generic(lookup.findStatic(hnsw, "build",
+                    MethodType.methodType(hnsw, matrix, int.class, int.class, int.class)));
+            HNSW_RECALL = generic(lookup.findVirtual(hnsw, "measureRecall",
+                    MethodType.methodType(Class.forName("HnswIndex$RecallReport"), int.class, int.class, long.class)));
+            BUILD_NN_DESCENT = generic(lookup.findStatic(nnDescent, "build",
+                    MethodType.methodType(nnDescent, List.class, int.class, long.class)));
+            NN_DESCENT_RECALL = generic(lookup.findVirtual(nnDescent, "measureRecall",
+                    MethodType.methodType(double.class, int.class, long.class)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Subjects() {
+    }
+
+    /**
+     * Replaces application types in a handle's signature with Object.
+     */
+    private static MethodHandle generic(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (!type.parameterType(i).getName().startsWith("java")
+                    && !type.parameterType(i).isPrimitive() && !type.parameterType(i).isArray()) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (!type.returnType().isPrimitive() && !type.returnType().isArray()) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    /**
+     * Creates random features; with a nonzero cluster count the vectors are grouped
+     * around shared centres, like photos of the same kind of attraction.
+     */
+    static List<Object> randomFeatures(int count, int clusters, long seed) throws Throwable {
+        Random random = new Random(seed);
+        double[][] centres = new double[Math.max(1, clusters)][COLOR_SIZE + EDGE_SIZE + SPATIAL_SIZE];
+        for (double[] centre : centres) {
+            for (int d = 0; d < centre.length; d++) {
+                centre[d] = random.nextDouble();
+            }
+        }
+
+        List<Object> features = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double[] centre = centres[random.nextInt(centres.length)];
+            double[] color = new double[COLOR_SIZE];
+            double[] edge = new double[EDGE_SIZE];
+            double[] spatial = new double[SPATIAL_SIZE];
+            fill(color, centre, 0, random, clusters);
+            fill(edge, centre, COLOR_SIZE, random, clusters);
+            fill(spatial, centre, COLOR_SIZE + EDGE_SIZE, random, clusters);
+            features.add(NEW_FEATURES.invokeExact(color, edge, spatial));
+        }
+        return features;
+    }
+
+    private static void fill(double[] block, double[] centre, int offset, Random random, int clusters) {
+        for (int d = 0; d < block.length; d++) {
+            block[d] = clusters > 0 ? Math.abs(centre[offset + d] + random.nextGaussian() * 0.05) : random.nextDouble();
+        }
+    }
+
+    /**
+     * Creates a synthetic photo-like image: smooth colour gradients with noise and
+     * a few hard edges, so every feature family has work to do.
+     */
+    static BufferedImage syntheticImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int b = ((x / 32 + y / 32) % 2 == 0 ? 200 : 40) + random.nextInt(16);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Loads the catalog photos, scaled so their longer side is the given size.
+     * The directory defaults to data/images/attractions and can be changed with
+     * {@code -Dbench.images=<dir>}.
+     */
+    static List<BufferedImage> realImages(int longestSide) throws IOException {
+        File dir = new File(System.getProperty("bench.images", "data/images/attractions"));
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".jpg") || name.endsWith(".png"));
+        if (files == null || files.length == 0) {
+            throw new IOException("no catalog images in " + dir.getAbsolutePath());
+        }
+
+        List<BufferedImage> images = new ArrayList<>();
+        for (File file : files) {
+            BufferedImage source = ImageIO.read(file);
+            if (source != null) {
+                images.add(scale(source, longestSide));
+            }
+        }
+        return images;
+    }
+
+    private static BufferedImage scale(BufferedImage source, int longestSide) {
+        double factor = (double) longestSide / Math.max(source.getWidth(), source.getHeight());
+        int width = Math.max(1, (int) Math.round(source.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * factor));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+}
@@ -1,6 +1,7 @@
 import javafx.scene.image.Image;
 import javafx.scene.image.PixelReader;
 import javafx.scene.paint.Color;
+import java.awt.image.BufferedImage;
 import java.util.Arrays;
 
 /**
@@ -9,8 +10,8 @@ import java.util.Arrays;
  * These features are then used to determine image similarity.
  */
 public class AdvancedImageComparator {
-    private static final int COLOR_BINS = 8;
-    private static final int GRID_SIZE = 4;
+    static final int COLOR_BINS = 8;
+    static final int GRID_SIZE = 4;
 
     /**
      * Container class for extracted image features.
@@ -28,9 +29,27 @@ public class AdvancedImageComparator {
     }
 
     /**
-     * Extracts all image features (color, edge, spatial) from the given image.
+     * Extracts all image features (color, edge, spatial) from the given image
+     * in a single pass over its pixels, using the configured feature pipeline.
      */
     public static ImageFeatures extractFeatures(Image image) {
+        return FeaturePipeline.getDefault().extract(image);
+    }
+
+    /**
+     * Extracts all image features from a decoded AWT image in a single pass.
+     */
+    public static ImageFeatures extractFeatures(BufferedImage image) {
+        int width = image.getWidth();
+        return FeaturePipeline.getDefault().extract(width, image.getHeight(),
+                (y, dst, offset) -> image.getRGB(0, y, width, 1, dst, offset, width));
+    }
+
+    /**
+     * Extracts all image features with one pass per feature family. Kept as the
+     * reference the feature pipeline is validated against.
+     */
+    static ImageFeatures extractFeaturesReference(Image image) {
         double[] colorHist = extractColorHistogram(image);
         double[] edgeHist = extractEdgeHistogram(image);
         double[] spatialFeatures = extractSpatialFeatures(image);
@@ -146,26 +165,17 @@ public class AdvancedImageComparator {
     }
 
     /**
-     * Combines all three feature similarities using weighted cosine similarity.
+     * Combines all three feature similarities using weighted cosine similarity,
+     * weighted as configured in the feature pipeline.
      */
     public static double compareImages(ImageFeatures f1, ImageFeatures f2) {
-        double colorSim = cosineSimilarity(f1.colorHistogram, f2.colorHistogram);
-        double edgeSim = cosineSimilarity(f1.edgeHistogram, f2.edgeHistogram);
-        double spatialSim = cosineSimilarity(f1.spatialColorFeatures, f2.spatialColorFeatures);
-
-        return 0.5 * colorSim + 0.3 * spatialSim + 0.2 * edgeSim;
-    }
-
-    /**
-     * Computes cosine similarity between two feature vectors.
-     */
-    private static double cosineSimilarity(double[] v1, double[] v2) {
-        double dot = 0, norm1 = 0, norm2 = 0;
-        for (int i = 0; i < v1.length; i++) {
-            dot += v1[i] * v2[i];
-            norm1 += v1[i] * v1[i];
-            norm2 += v2[i] * v2[i];
-        }
-        return dot / (Math.sqrt(norm1) * Math.sqrt(norm2) + 1e-10);
+        FeaturePipeline pipeline = FeaturePipeline.getDefault();
+        double colorSim = VectorKernels.cosine(f1.colorHistogram, f2.colorHistogram);
+        double edgeSim = VectorKernels.cosine(f1.edgeHistogram, f2.edgeHistogram);
+        double spatialSim = VectorKernels.cosine(f1.spatialColorFeatures, f2.spatialColorFeatures);
+
+        return pipeline.weight(FeatureExtractor.FeatureFamily.COLOR) * colorSim
+                + pipeline.weight(FeatureExtractor.FeatureFamily.SPATIAL) * spatialSim
+                + pipeline.weight(FeatureExtractor.FeatureFamily.EDGE) * edgeSim;
     }
 }
@@ -0,0 +1,57 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Matches a whole folder of photos, such as a trip album, against the attraction
+ * catalog. Album photos are decoded in parallel and then scored together with
+ * {@link FeatureIndex#findMostSimilar(float[][], int)}, so the catalog is streamed
+ * through the CPU once per album instead of once per photo.
+ */
+public class AlbumMatcher {
+
+    /**
+     * Finds the k most similar attractions for every image in the album folder.
+     * @param albumDir  Folder of query photos (jpg and png)
+     * @param index     Catalog snapshot to match against
+     * @param k         Number of matches per photo
+     * @param listener  Progress callback for decoding the album, invoked from worker threads
+     * @param cancelled Polled while decoding; returning true aborts the match
+     * @return          Attraction names best first, keyed by photo file name in album order.
+     *                  Photos that could not be decoded are left out.
+     * @throws java.util.concurrent.CancellationException if cancelled
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public static Map<String, List<String>> matchAlbum(File albumDir, FeatureIndex index, int k,
+                                                       CatalogIngestor.ProgressListener listener,
+                                                       BooleanSupplier cancelled) throws InterruptedException {
+        List<File> photos = FeatureIndex.listImages(albumDir);
+        List<AdvancedImageComparator.ImageFeatures> features =
+                new CatalogIngestor().ingest(photos, ImageLoader::extractFeatures, listener, cancelled);
+
+        List<String> photoNames = new ArrayList<>();
+        List<float[]> queries = new ArrayList<>();
+        for (int i = 0; i < photos.size(); i++) {
+            if (features.get(i) != null) {
+                photoNames.add(photos.get(i).getName());
+                queries.add(FeatureMatrix.encodeQuery(features.get(i)));
+            }
+        }
+
+        TopKSelector[] best = index.findMostSimilar(queries.toArray(new float[0][]), k);
+
+        Map<String, List<String>> matches = new LinkedHashMap<>();
+        for (int q = 0; q < best.length; q++) {
+            best[q].sort();
+            List<String> names = new ArrayList<>(best[q].size());
+            for (int i = 0; i < best[q].size(); i++) {
+                names.add(index.name(best[q].id(i)));
+            }
+            matches.put(photoNames.get(q), names);
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Processes catalog image files across a bounded pool of worker threads.
+ * At most {@code maxInFlight} files are being decoded at any time: the submitting
+ * thread blocks until a worker finishes before handing out the next file, so
+ * memory use stays flat no matter how large the catalog is.
+ */
+public class CatalogIngestor {
+
+    /**
+     * Work performed for a single catalog file, typically decode and feature extraction.
+     */
+    public interface Task<R> {
+        R process(File file) throws IOException;
+    }
+
+    /**
+     * Receives progress updates. Called from worker threads.
+     */
+    public interface ProgressListener {
+        void onProgress(int completed, int total);
+    }
+
+    private final int threads;
+    private final int maxInFlight;
+
+    /**
+     * Creates an ingestor using one worker per available core.
+     */
+    public CatalogIngestor() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads     Number of worker threads
+     * @param maxInFlight Maximum number of files processed at the same time
+     */
+    public CatalogIngestor(int threads, int maxInFlight) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads and maxInFlight must be positive");
+        }
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Runs the task on every file and returns the results in input order.
+     * Files whose task fails are logged and yield a null result.
+     * @param files     Files to process
+     * @param task      Work to perform per file
+     * @param listener  Progress callback, invoked once per finished file
+     * @param cancelled Polled before each file; returning true stops the ingestion
+     * @return          Results aligned with the input files
+     * @throws CancellationException if cancellation was requested
+     * @throws InterruptedException  if the calling thread was interrupted
+     */
+    public <R> List<R> ingest(List<File> files, Task<R> task, ProgressListener listener,
+                              BooleanSupplier cancelled) throws InterruptedException {
+        int total = files.size();
+        AtomicReferenceArray<R> results = new AtomicReferenceArray<>(total);
+        AtomicInteger completed = new AtomicInteger();
+        Semaphore permits = new Semaphore(maxInFlight);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, total)), workerFactory());
+
+        try {
+            for (int i = 0; i < total && !cancelled.getAsBoolean(); i++) {
+                permits.acquire();
+                File file = files.get(i);
+                int index = i;
+                pool.execute(() -> {
+                    try {
+                        if (!cancelled.getAsBoolean()) {
+                            results.set(index, task.process(file));
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Failed to ingest " + file + ": " + e.getMessage());
+                    } finally {
+                        permits.release();
+                        listener.onProgress(completed.incrementAndGet(), total);
+                    }
+                });
+            }
+            // Wait for the remaining in-flight files
+            permits.acquire(maxInFlight);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Catalog ingestion cancelled");
+        }
+        List<R> ordered = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            ordered.add(results.get(i));
+        }
+        return ordered;
+    }
+
+    private static ThreadFactory workerFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "catalog-ingest-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
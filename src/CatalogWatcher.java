@@ -0,0 +1,134 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the feature index in sync with the attraction image directory while the
+ * application runs. File system events are collected until the directory has been
+ * quiet for a short moment, then only the affected images are re-extracted and a
+ * new index snapshot is swapped in atomically. Queries that already hold the old
+ * snapshot finish against it undisturbed. Once watching, the directory is compared
+ * with the initial snapshot, so changes made before the watch started are not lost.
+ */
+public class CatalogWatcher implements Closeable {
+    // Events closer together than this are applied as one batch
+    private static final long QUIET_PERIOD_MS = 500;
+
+    private final File imageDir;
+    private final File indexFile;
+    private final AtomicReference<FeatureIndex> current;
+    private final Consumer<FeatureIndex> onUpdate;
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts watching the image directory.
+     * @param imageDir  Directory containing the catalog images
+     * @param indexFile Binary index file kept up to date
+     * @param initial   Snapshot to start from
+     * @param onUpdate  Receives every newly swapped-in snapshot (called on the watcher thread)
+     * @throws IOException if the directory cannot be watched
+     */
+    public CatalogWatcher(File imageDir, File indexFile, FeatureIndex initial,
+                          Consumer<FeatureIndex> onUpdate) throws IOException {
+        this.imageDir = imageDir;
+        this.indexFile = indexFile;
+        this.current = new AtomicReference<>(initial);
+        this.onUpdate = onUpdate;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        imageDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        this.thread = new Thread(this::run, "catalog-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the most recent index snapshot.
+     */
+    public FeatureIndex current() {
+        return current.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        watchService.close();
+    }
+
+    private void run() {
+        try {
+            Set<String> initial = new HashSet<>();
+            addAllImages(initial);
+            apply(initial);
+            while (!closed) {
+                Set<String> changed = new HashSet<>();
+                boolean overflow = collect(watchService.take(), changed);
+
+                // Wait for the burst of events to settle before updating
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(key, changed);
+                }
+
+                if (overflow) {
+                    // Events were lost; reconcile every known and present image
+                    addAllImages(changed);
+                }
+                apply(changed);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Adds the file names of every indexed and every present image to the set.
+     */
+    private void addAllImages(Set<String> changed) {
+        for (FeatureIndex.Entry entry : current.get().getEntries()) {
+            changed.add(entry.fileName);
+        }
+        for (File file : FeatureIndex.listImages(imageDir)) {
+            changed.add(file.getName());
+        }
+    }
+
+    /**
+     * Adds the file names of a key's events to the set and re-arms the key.
+     * @return True if events overflowed and were dropped
+     */
+    private boolean collect(WatchKey key, Set<String> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                changed.add(((Path) event.context()).getFileName().toString());
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    private void apply(Set<String> changed) throws InterruptedException {
+        if (changed.isEmpty()) {
+            return;
+        }
+        FeatureIndex previous = current.get();
+        FeatureIndex updated = previous.update(imageDir, indexFile, changed);
+        if (updated != previous && current.compareAndSet(previous, updated)) {
+            updated.activate();
+            onUpdate.accept(updated);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Normalized histogram of the red, green and blue channels, sampled on a sparse
+ * grid of about a thousand pixels per row and column step.
+ */
+public class ColorHistogramExtractor implements FeatureExtractor {
+    private static final int COLOR_BINS = AdvancedImageComparator.COLOR_BINS;
+
+    private double[] hist;
+    private int width;
+    private int step;
+
+    @Override
+    public FeatureExtractor.FeatureFamily family() {
+        return FeatureExtractor.FeatureFamily.COLOR;
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.5;
+    }
+
+    @Override
+    public int dimensions() {
+        return COLOR_BINS * 3;
+    }
+
+    @Override
+    public void begin(int width, int height) {
+        this.hist = new double[COLOR_BINS * 3];
+        this.width = width;
+        this.step = Math.max(1, (int) ((double) width * height / 1000));
+    }
+
+    @Override
+    public boolean needsRow(int y) {
+        return y % step == 0;
+    }
+
+    @Override
+    public void acceptRow(int y, int[] rows, int rowWidth) {
+        double[] unit = FeaturePipeline.UNIT;
+        int offset = (y & 1) * rowWidth;
+        for (int x = 0; x < width; x += step) {
+            int argb = rows[offset + x];
+            hist[(int) (unit[(argb >> 16) & 0xFF] * (COLOR_BINS - 1))]++;
+            hist[COLOR_BINS + (int) (unit[(argb >> 8) & 0xFF] * (COLOR_BINS - 1))]++;
+            hist[2 * COLOR_BINS + (int) (unit[argb & 0xFF] * (COLOR_BINS - 1))]++;
+        }
+    }
+
+    @Override
+    public double[] finish() {
+        FeaturePipeline.normalize(hist);
+        return hist;
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Image KNN graph in compressed sparse row form: the edges of node i are
+ * {@code offsets[i]} to {@code offsets[i + 1]} of the flat target and weight
+ * arrays, and all node features form one contiguous matrix. Neighbour scans touch
+ * consecutive memory, and the graph saves to a binary file that is memory-mapped
+ * on load, so even large graphs open without parsing or copying their arrays.
+ *
+ * <p>A single mapping cannot exceed 2 GB, so every array is held as chunks of at
+ * most {@code CHUNK} values; feature chunks hold whole rows so a node's vector
+ * never straddles two of them.
+ */
+public class CompactImageGraph {
+    private static final int MAGIC = 0x54524b47; // "TRKG"
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHUNK_SHIFT = 28;
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+
+    private final String[] names;
+    private final int dimensions;
+    private final int edgeCount;
+    private final int rowsPerChunk;
+    private final IntBuffer[] offsets;
+    private final IntBuffer[] targets;
+    private final FloatBuffer[] weights;
+    private final FloatBuffer[] features;
+
+    private CompactImageGraph(String[] names, int dimensions, int edgeCount, IntBuffer[] offsets,
+                              IntBuffer[] targets, FloatBuffer[] weights, FloatBuffer[] features) {
+        this.names = names;
+        this.dimensions = dimensions;
+        this.edgeCount = edgeCount;
+        this.rowsPerChunk = rowsPerChunk(dimensions);
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.features = features;
+    }
+
+    /**
+     * Packs an object graph. Nodes keep their list order and edges their order per node.
+     */
+    public static CompactImageGraph from(KNNImageGraph.ImageGraph graph) {
+        int size = graph.nodes.size();
+        int dimensions = size == 0 ? 0 : graph.nodes.get(0).features.length;
+        Map<KNNImageGraph.ImageNode, Integer> index = new IdentityHashMap<>();
+        int edgeCount = 0;
+        for (int i = 0; i < size; i++) {
+            index.put(graph.nodes.get(i), i);
+            edgeCount += graph.nodes.get(i).edges.size();
+        }
+
+        String[] names = new String[size];
+        int[] offsets = new int[size + 1];
+        int[] targets = new int[edgeCount];
+        float[] weights = new float[edgeCount];
+        float[] features = new float[Math.multiplyExact(size, dimensions)];
+        int edge = 0;
+        for (int i = 0; i < size; i++) {
+            KNNImageGraph.ImageNode node = graph.nodes.get(i);
+            names[i] = node.name;
+            offsets[i] = edge;
+            for (KNNImageGraph.Edge e : node.edges) {
+                targets[edge] = index.get(e.target);
+                weights[edge++] = (float) e.weight;
+            }
+            for (int d = 0; d < dimensions; d++) {
+                features[i * dimensions + d] = (float) node.features[d];
+            }
+        }
+        offsets[size] = edge;
+
+        IntBuffer[] offsetChunks = new IntBuffer[chunkCount(offsets.length, CHUNK)];
+        for (int c = 0; c < offsetChunks.length; c++) {
+            offsetChunks[c] = IntBuffer.wrap(offsets, c * CHUNK, Math.min(CHUNK, offsets.length - c * CHUNK)).slice();
+        }
+        IntBuffer[] targetChunks = new IntBuffer[chunkCount(edgeCount, CHUNK)];
+        FloatBuffer[] weightChunks = new FloatBuffer[targetChunks.length];
+        for (int c = 0; c < targetChunks.length; c++) {
+            int length = Math.min(CHUNK, edgeCount - c * CHUNK);
+            targetChunks[c] = IntBuffer.wrap(targets, c * CHUNK, length).slice();
+            weightChunks[c] = FloatBuffer.wrap(weights, c * CHUNK, length).slice();
+        }
+        int featureChunk = rowsPerChunk(dimensions) * dimensions;
+        FloatBuffer[] featureChunks = new FloatBuffer[chunkCount(features.length, featureChunk)];
+        for (int c = 0; c < featureChunks.length; c++) {
+            featureChunks[c] = FloatBuffer.wrap(features, c * featureChunk,
+                    Math.min(featureChunk, features.length - c * featureChunk)).slice();
+        }
+        return new CompactImageGraph(names, dimensions, edgeCount, offsetChunks, targetChunks, weightChunks,
+                featureChunks);
+    }
+
+    /**
+     * Unpacks the graph into nodes and edge objects, e.g. to modify it.
+     */
+    public KNNImageGraph.ImageGraph toImageGraph() {
+        KNNImageGraph.ImageGraph graph = new KNNImageGraph.ImageGraph();
+        for (int i = 0; i < size(); i++) {
+            double[] values = new double[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                values[d] = feature(i, d);
+            }
+            graph.nodes.add(new KNNImageGraph.ImageNode(names[i], values));
+        }
+        for (int i = 0; i < size(); i++) {
+            KNNImageGraph.ImageNode node = graph.nodes.get(i);
+            for (int e = edgeStart(i); e < edgeEnd(i); e++) {
+                node.edges.add(new KNNImageGraph.Edge(graph.nodes.get(target(e)), weight(e)));
+            }
+        }
+        return graph;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Length of each node's feature vector.
+     */
+    public int dimensions() {
+        return dimensions;
+    }
+
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    public String name(int node) {
+        return names[node];
+    }
+
+    /**
+     * Index of the node's first edge.
+     */
+    public int edgeStart(int node) {
+        return offsets[node >>> CHUNK_SHIFT].get(node & (CHUNK - 1));
+    }
+
+    /**
+     * Index just past the node's last edge.
+     */
+    public int edgeEnd(int node) {
+        return edgeStart(node + 1);
+    }
+
+    /**
+     * Target node of an edge.
+     */
+    public int target(int edge) {
+        return targets[edge >>> CHUNK_SHIFT].get(edge & (CHUNK - 1));
+    }
+
+    /**
+     * Weight (feature distance) of an edge.
+     */
+    public float weight(int edge) {
+        return weights[edge >>> CHUNK_SHIFT].get(edge & (CHUNK - 1));
+    }
+
+    public float feature(int node, int dimension) {
+        return features[node / rowsPerChunk].get(node % rowsPerChunk * dimensions + dimension);
+    }
+
+    /**
+     * Copies a node's feature vector into dst.
+     */
+    public void copyFeatures(int node, float[] dst, int offset) {
+        features[node / rowsPerChunk].get(node % rowsPerChunk * dimensions, dst, offset, dimensions);
+    }
+
+    /**
+     * Writes the graph to a temporary file and moves it into place.
+     */
+    public void save(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("could not create " + parent);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(size());
+            out.writeInt(edgeCount());
+            out.writeInt(dimensions);
+            for (int i = 0; i <= size(); i++) {
+                out.writeInt(edgeStart(i));
+            }
+            for (int e = 0; e < edgeCount(); e++) {
+                out.writeInt(target(e));
+            }
+            for (int e = 0; e < edgeCount(); e++) {
+                out.writeFloat(weight(e));
+            }
+            for (int i = 0; i < size(); i++) {
+                for (int d = 0; d < dimensions; d++) {
+                    out.writeFloat(feature(i, d));
+                }
+            }
+            for (String name : names) {
+                FeatureIndex.writeString(out, name);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Opens a saved graph. The offset, edge and feature arrays stay in the mapped
+     * file; only the node names are decoded.
+     */
+    public static CompactImageGraph load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(5 * Integer.BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            if (header.remaining() < 5 * Integer.BYTES
+                    || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported image graph format");
+            }
+            int size = header.getInt();
+            int edgeCount = header.getInt();
+            int dimensions = header.getInt();
+            if (size < 0 || edgeCount < 0 || dimensions < 0) {
+                throw new IOException("corrupt image graph header");
+            }
+
+            // Sizes in bytes exceed the int range for large graphs
+            long position = header.limit();
+            long featureCount = (long) size * dimensions;
+            long namesStart = position + ((long) size + 1) * Integer.BYTES + (long) edgeCount * Integer.BYTES
+                    + (long) edgeCount * Float.BYTES + featureCount * Float.BYTES;
+            if (channel.size() < namesStart) {
+                throw new IOException("truncated image graph file");
+            }
+
+            IntBuffer[] offsets = new IntBuffer[chunkCount(size + 1L, CHUNK)];
+            for (int c = 0; c < offsets.length; c++) {
+                long count = Math.min(CHUNK, size + 1L - (long) c * CHUNK);
+                offsets[c] = map(channel, position, count * Integer.BYTES).asIntBuffer();
+                position += count * Integer.BYTES;
+            }
+            IntBuffer[] targets = new IntBuffer[chunkCount(edgeCount, CHUNK)];
+            for (int c = 0; c < targets.length; c++) {
+                long count = Math.min(CHUNK, edgeCount - (long) c * CHUNK);
+                targets[c] = map(channel, position, count * Integer.BYTES).asIntBuffer();
+                position += count * Integer.BYTES;
+            }
+            FloatBuffer[] weights = new FloatBuffer[targets.length];
+            for (int c = 0; c < weights.length; c++) {
+                long count = Math.min(CHUNK, edgeCount - (long) c * CHUNK);
+                weights[c] = map(channel, position, count * Float.BYTES).asFloatBuffer();
+                position += count * Float.BYTES;
+            }
+            long featureChunk = (long) rowsPerChunk(dimensions) * dimensions;
+            FloatBuffer[] features = new FloatBuffer[chunkCount(featureCount, featureChunk)];
+            for (int c = 0; c < features.length; c++) {
+                long count = Math.min(featureChunk, featureCount - c * featureChunk);
+                features[c] = map(channel, position, count * Float.BYTES).asFloatBuffer();
+                position += count * Float.BYTES;
+            }
+
+            String[] names = new String[size];
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(namesStart))));
+            for (int i = 0; i < size; i++) {
+                byte[] bytes = new byte[in.readUnsignedShort()];
+                in.readFully(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            CompactImageGraph graph = new CompactImageGraph(names, dimensions, edgeCount, offsets, targets,
+                    weights, features);
+            if (graph.edgeStart(size) != edgeCount) {
+                throw new IOException("edge offsets do not match edge count");
+            }
+            return graph;
+        } catch (EOFException e) {
+            throw new IOException("truncated image graph file", e);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt image graph", e);
+        }
+    }
+
+    /**
+     * Feature rows per chunk: as many whole rows as fit in CHUNK values.
+     */
+    private static int rowsPerChunk(int dimensions) {
+        return Math.max(1, CHUNK / Math.max(1, dimensions));
+    }
+
+    private static int chunkCount(long values, long perChunk) {
+        perChunk = Math.max(1, perChunk);
+        return (int) ((values + perChunk - 1) / perChunk);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long bytes) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Normalized 8-bin histogram of brightness gradient orientations, weighted by
+ * gradient magnitude and sampled every few pixels.
+ */
+public class EdgeHistogramExtractor implements FeatureExtractor {
+    private static final int EDGE_BINS = 8;
+    private static final int EDGE_STEP = 5;
+
+    private double[] hist;
+    private int height;
+
+    @Override
+    public FeatureExtractor.FeatureFamily family() {
+        return FeatureExtractor.FeatureFamily.EDGE;
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.2;
+    }
+
+    @Override
+    public int dimensions() {
+        return EDGE_BINS;
+    }
+
+    @Override
+    public void begin(int width, int height) {
+        this.hist = new double[EDGE_BINS];
+        this.height = height;
+    }
+
+    @Override
+    public boolean needsRow(int y) {
+        return isEdgeRow(y) || isEdgeRow(y - 1);
+    }
+
+    @Override
+    public void acceptRow(int y, int[] rows, int width) {
+        if (isEdgeRow(y - 1)) {
+            // Row y - 1 is an edge row; row y supplies the bottom neighbours
+            accumulate(rows, ((y - 1) & 1) * width, (y & 1) * width, width);
+        }
+    }
+
+    @Override
+    public double[] finish() {
+        FeaturePipeline.normalize(hist);
+        return hist;
+    }
+
+    /**
+     * Edge rows start at 1 and repeat every EDGE_STEP rows, excluding the last row.
+     */
+    private boolean isEdgeRow(int y) {
+        return y >= 1 && y < height - 1 && (y - 1) % EDGE_STEP == 0;
+    }
+
+    /**
+     * Adds gradient magnitudes of one edge row to the orientation histogram.
+     */
+    private void accumulate(int[] rows, int rowOffset, int belowOffset, int width) {
+        for (int x = 1; x < width - 1; x += EDGE_STEP) {
+            double center = brightness(rows[rowOffset + x]);
+            double dx = brightness(rows[rowOffset + x + 1]) - center;
+            double dy = brightness(rows[belowOffset + x]) - center;
+
+            double magnitude = Math.sqrt(dx * dx + dy * dy);
+            if (magnitude > 0.1) {
+                double angle = Math.atan2(dy, dx);
+                int bin = (int) ((angle + Math.PI) / (Math.PI / 4)) % EDGE_BINS;
+                hist[bin] += magnitude;
+            }
+        }
+    }
+
+    /**
+     * Luminance of an ARGB pixel, matching AdvancedImageComparator.brightness.
+     */
+    private static double brightness(int argb) {
+        double[] unit = FeaturePipeline.UNIT;
+        return 0.299 * unit[(argb >> 16) & 0xFF] + 0.587 * unit[(argb >> 8) & 0xFF] + 0.114 * unit[argb & 0xFF];
+    }
+}
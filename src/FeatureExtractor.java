@@ -0,0 +1,55 @@
+/**
+ * One stage of the feature pipeline, computing the features of a single family.
+ * Stages never read pixels themselves: the {@link FeaturePipeline} sweeps the image
+ * once, reading every row that at least one enabled stage needs, and hands each
+ * row to the stages that asked for it. Instances keep per-image state and are
+ * used by one thread at a time.
+ */
+public interface FeatureExtractor {
+
+    /**
+     * Feature families, one per stage of the {@link FeaturePipeline}.
+     */
+    enum FeatureFamily {
+        COLOR,
+        EDGE,
+        SPATIAL
+    }
+
+    /**
+     * The feature family this stage computes.
+     */
+    FeatureFamily family();
+
+    /**
+     * Weight of this family's similarity when no weight is configured.
+     */
+    double defaultWeight();
+
+    /**
+     * Length of the feature vector returned by {@link #finish()}.
+     */
+    int dimensions();
+
+    /**
+     * Resets the stage for a new image of the given size.
+     */
+    void begin(int width, int height);
+
+    /**
+     * True if the stage needs row y to be read.
+     */
+    boolean needsRow(int y);
+
+    /**
+     * Processes row y. The pipeline keeps two rows as ARGB values in a ring buffer:
+     * row y starts at {@code (y & 1) * width}, and row y - 1 at {@code ((y - 1) & 1) * width}
+     * if this stage needed it as well.
+     */
+    void acceptRow(int y, int[] rows, int width);
+
+    /**
+     * Returns the features of the image processed since {@link #begin}.
+     */
+    double[] finish();
+}
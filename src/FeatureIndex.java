@@ -0,0 +1,718 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Persistent index of precomputed image features for the attraction catalog.
+ * The index is stored as a compact binary file holding, for every catalog image,
+ * its name, a checksum of the source file and its feature vectors. It is
+ * memory-mapped on load and only images whose source file changed are re-extracted.
+ */
+public class FeatureIndex {
+    private static final int MAGIC = 0x54524649; // "TRFI"
+    private static final int FORMAT_VERSION = 3;
+
+    // Catalogs at least this large are searched through an HNSW graph instead of a full scan
+    static final int APPROXIMATE_SEARCH_THRESHOLD = 10_000;
+    private static final int HNSW_M = 16;
+    private static final int HNSW_EF_CONSTRUCTION = 200;
+    private static final int HNSW_EF_SEARCH = 64;
+    // A carried-over graph is rebuilt in the background once updates replaced this share of its rows
+    private static final double HNSW_REBUILD_FRACTION = 0.1;
+
+    // Exact scans can run over 8-bit quantized rows instead (-Dsearch.quantized=true);
+    // this many quantized candidates are re-scored at full precision
+    private static final boolean QUANTIZED_SEARCH = Boolean.getBoolean("search.quantized");
+    private static final int QUANTIZED_RERANK = 256;
+    // Quantized search is only used if it finds this share of the exact top-6 for sampled queries
+    private static final double QUANTIZED_MIN_AGREEMENT = 0.99;
+    private static final int QUANTIZED_AGREEMENT_QUERIES = 100;
+    private static final int ROWS_MAGIC = 0x54524652; // "TRFR"
+    private static final int ROWS_HEADER_BYTES = 16;
+
+    /**
+     * A single catalog image together with its source file fingerprint and features.
+     * The features are either held on the heap or read on demand from a
+     * memory-mapped feature file.
+     */
+    public static class Entry {
+        public final String name;
+        public final String fileName;
+        public final long length;
+        public final long lastModified;
+        public final long checksum;
+        private final AdvancedImageComparator.ImageFeatures features;
+        private final DoubleBuffer storedRows;
+        private final int storedRow;
+
+        public Entry(String name, String fileName, long length, long lastModified, long checksum,
+                     AdvancedImageComparator.ImageFeatures features) {
+            this(name, fileName, length, lastModified, checksum, features, null, -1);
+        }
+
+        private Entry(String name, String fileName, long length, long lastModified, long checksum,
+                      AdvancedImageComparator.ImageFeatures features, DoubleBuffer storedRows, int storedRow) {
+            this.name = name;
+            this.fileName = fileName;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.features = features;
+            this.storedRows = storedRows;
+            this.storedRow = storedRow;
+        }
+
+        /**
+         * Returns the image features, reading them from the feature file if they
+         * are not held on the heap.
+         */
+        public AdvancedImageComparator.ImageFeatures features() {
+            if (features != null) {
+                return features;
+            }
+            DoubleBuffer rows = storedRows.duplicate();
+            rows.position(storedRow * FeatureMatrix.DIMENSIONS);
+            double[] color = new double[FeatureMatrix.COLOR_SIZE];
+            double[] edge = new double[FeatureMatrix.EDGE_SIZE];
+            double[] spatial = new double[FeatureMatrix.SPATIAL_SIZE];
+            rows.get(color).get(edge).get(spatial);
+            return new AdvancedImageComparator.ImageFeatures(color, edge, spatial);
+        }
+
+        /**
+         * Same image and features with a new file fingerprint.
+         */
+        Entry withFileState(long length, long lastModified, long checksum) {
+            return new Entry(name, fileName, length, lastModified, checksum, features, storedRows, storedRow);
+        }
+
+        /**
+         * Same entry with its features read from the given row of a feature file.
+         */
+        Entry storedAt(DoubleBuffer rows, int row) {
+            return new Entry(name, fileName, length, lastModified, checksum, null, rows, row);
+        }
+    }
+
+    /**
+     * HNSW upkeep shared by the snapshots of one index file: the snapshot currently
+     * swapped in, which alone may write the graph file, and whether a background
+     * rebuild is running.
+     */
+    private static class ApproximateIndexState {
+        final File graphFile;
+        final AtomicBoolean rebuilding = new AtomicBoolean();
+        // Guarded by this
+        FeatureIndex live;
+
+        ApproximateIndexState(File graphFile) {
+            this.graphFile = graphFile;
+        }
+    }
+
+    private List<Entry> entries;
+    // Full-precision rows; dropped once quantized search takes over
+    private FeatureMatrix matrix;
+    private final long version;
+    private QuantizedFeatureMatrix quantizedMatrix;
+    private volatile HnswIndex approximateIndex;
+    private ApproximateIndexState approximateState;
+    // Guarded by approximateState
+    private boolean approximateIndexSaved;
+
+    private FeatureIndex(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        List<String> names = new ArrayList<>(entries.size());
+        List<AdvancedImageComparator.ImageFeatures> features = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            names.add(entry.name);
+            features.add(entry.features());
+        }
+        this.matrix = new FeatureMatrix(names, features);
+
+        // FNV-1a over the pipeline configuration, names and content checksums identifies this catalog state
+        long hash = (0xcbf29ce484222325L ^ FeaturePipeline.getDefault().configurationHash()) * 0x100000001b3L;
+        for (Entry entry : entries) {
+            hash = (hash ^ entry.fileName.hashCode()) * 0x100000001b3L;
+            hash = (hash ^ entry.checksum) * 0x100000001b3L;
+        }
+        this.version = hash;
+    }
+
+    /**
+     * Returns all indexed catalog images in file name order.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the catalog features as a scoring matrix whose rows follow {@link #getEntries()}.
+     * @return The matrix, or null if quantized search replaced it
+     */
+    public FeatureMatrix getMatrix() {
+        return matrix;
+    }
+
+    /**
+     * Attraction name of the image at the given row of the search results.
+     */
+    public String name(int row) {
+        return entries.get(row).name;
+    }
+
+    /**
+     * Identifies the catalog content; equal versions mean equal names, image checksums
+     * and feature pipeline configuration.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Finds the k catalog images most similar to the query features. Large catalogs
+     * are searched approximately through the HNSW graph, small ones exactly. With
+     * quantized search enabled, catalogs of any size are scanned over the quantized
+     * rows and the best candidates re-ranked at full precision.
+     * @param query Query image features
+     * @param k     Number of matches
+     * @return      Selector holding matrix row ids (call {@link TopKSelector#sort()} to rank them)
+     */
+    public TopKSelector findMostSimilar(AdvancedImageComparator.ImageFeatures query, int k) {
+        float[] encoded = FeatureMatrix.encodeQuery(query);
+        if (approximateIndex != null) {
+            return approximateIndex.search(encoded, k);
+        }
+        if (quantizedMatrix != null) {
+            return quantizedMatrix.topK(encoded, k, QUANTIZED_RERANK);
+        }
+        return matrix.topK(encoded, k);
+    }
+
+    /**
+     * Finds the k most similar catalog images for each of many queries, exactly and
+     * in one pass over the catalog, or over the quantized rows with exact re-ranking
+     * when quantized search replaced the full-precision matrix.
+     * @param queries Queries encoded with {@link FeatureMatrix#encodeQuery}
+     * @return        One selector of row ids per query, aligned with the input
+     */
+    public TopKSelector[] findMostSimilar(float[][] queries, int k) {
+        if (matrix != null) {
+            return matrix.topKBatch(queries, k);
+        }
+        TopKSelector[] best = new TopKSelector[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            best[q] = quantizedMatrix.topK(queries[q], k, QUANTIZED_RERANK);
+        }
+        return best;
+    }
+
+    /**
+     * Switches this snapshot to quantized search. The rows are quantized and,
+     * unless an earlier snapshot already passed the check, sampled queries verify
+     * that quantized search with re-ranking returns the exact matches. The raw
+     * features are then written to a file named after the catalog version and
+     * memory-mapped, and the full-precision matrix and the entries' features are
+     * dropped from the heap; candidates are re-ranked from the mapped file.
+     * @param checkAgreement Whether to measure agreement with exact search
+     * @return False if quantized search is not used, in which case this snapshot
+     *         keeps searching exactly
+     */
+    private boolean attachQuantizedMatrix(File indexFile, boolean checkAgreement) {
+        QuantizedFeatureMatrix quantized = new QuantizedFeatureMatrix(matrix, matrix::score);
+        if (checkAgreement && matrix.size() > 0) {
+            double agreement = quantized.measureAgreement(matrix, QUANTIZED_AGREEMENT_QUERIES, 6,
+                    QUANTIZED_RERANK, 1);
+            if (agreement < QUANTIZED_MIN_AGREEMENT) {
+                System.err.printf("Quantized search found %.3f of the exact matches (below %.2f), searching exactly%n",
+                        agreement, QUANTIZED_MIN_AGREEMENT);
+                return false;
+            }
+        }
+
+        DoubleBuffer rows;
+        try {
+            rows = mapFeatureRows(indexFile);
+        } catch (IOException e) {
+            System.err.println("Quantized search disabled, failed to store feature rows: " + e.getMessage());
+            return false;
+        }
+        List<Entry> stored = new ArrayList<>(entries.size());
+        for (int row = 0; row < entries.size(); row++) {
+            stored.add(entries.get(row).storedAt(rows, row));
+        }
+        entries = Collections.unmodifiableList(stored);
+        quantizedMatrix = quantized.rescoredBy(
+                (query, row) -> FeatureMatrix.score(query, rows, row * FeatureMatrix.DIMENSIONS));
+        matrix = null;
+        return true;
+    }
+
+    /**
+     * Memory-maps the raw feature rows of this snapshot, writing them first if no
+     * file for this catalog version exists. Each version gets its own file, so a
+     * file mapped by an older snapshot is never overwritten; files of other versions
+     * are deleted where the platform allows it.
+     */
+    private DoubleBuffer mapFeatureRows(File indexFile) throws IOException {
+        long bytes = ROWS_HEADER_BYTES + (long) entries.size() * FeatureMatrix.DIMENSIONS * Double.BYTES;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("catalog too large to map its feature rows");
+        }
+        String prefix = indexFile.getName() + ".rows-";
+        File rowsFile = new File(indexFile.getPath() + ".rows-" + Long.toHexString(version));
+        if (rowsFile.length() != bytes) {
+            File tmp = new File(rowsFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(ROWS_MAGIC);
+                out.writeInt(entries.size());
+                out.writeLong(version);
+                for (Entry entry : entries) {
+                    AdvancedImageComparator.ImageFeatures features = entry.features();
+                    writeDoubles(out, features.colorHistogram);
+                    writeDoubles(out, features.edgeHistogram);
+                    writeDoubles(out, features.spatialColorFeatures);
+                }
+            }
+            Files.move(tmp.toPath(), rowsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        File[] siblings = rowsFile.getAbsoluteFile().getParentFile().listFiles();
+        for (File sibling : siblings == null ? new File[0] : siblings) {
+            if (sibling.getName().startsWith(prefix) && !sibling.getName().equals(rowsFile.getName())) {
+                sibling.delete();
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(rowsFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+            if (buffer.getInt() != ROWS_MAGIC || buffer.getInt() != entries.size() || buffer.getLong() != version) {
+                throw new IOException("feature rows belong to another catalog version");
+            }
+            return buffer.slice().asDoubleBuffer();
+        }
+    }
+
+    /**
+     * Loads the HNSW graph stored next to the index, or creates it when it is
+     * missing or belongs to another catalog version. The graph of a previous
+     * snapshot is carried over, inserting and removing only the changed rows; without
+     * one the graph is built from scratch. A new graph is written once the snapshot
+     * is swapped in by {@link #activate}. Small catalogs and quantized snapshots,
+     * which hold no full-precision matrix, skip the graph.
+     * @param previous Snapshot this one was updated from, or null
+     */
+    private void attachApproximateIndex(File graphFile, FeatureIndex previous) {
+        approximateState = previous != null && previous.approximateState != null
+                ? previous.approximateState : new ApproximateIndexState(graphFile);
+        if (quantizedMatrix != null || matrix.size() < APPROXIMATE_SEARCH_THRESHOLD) {
+            return;
+        }
+        if (previous != null && previous.approximateIndex != null) {
+            approximateIndex = previous.approximateIndex.update(matrix, previousRows(previous));
+        } else {
+            try {
+                approximateIndex = HnswIndex.load(graphFile, matrix, version);
+                approximateIndexSaved = true;
+                return;
+            } catch (IOException e) {
+                if (graphFile.exists()) {
+                    System.err.println("Rebuilding HNSW index: " + e.getMessage());
+                }
+            }
+            approximateIndex = HnswIndex.build(matrix, HNSW_M, HNSW_EF_CONSTRUCTION, HNSW_EF_SEARCH);
+        }
+    }
+
+    /**
+     * Marks this snapshot as the one in use for its index file: writes its HNSW
+     * graph if the file does not hold it yet, and starts a background rebuild when
+     * updates have replaced too many of the graph's rows. Called by loadOrBuild and
+     * by whoever swaps in a snapshot returned by {@link #update}.
+     */
+    void activate() {
+        ApproximateIndexState state = approximateState;
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.live = this;
+            if (approximateIndex != null && !approximateIndexSaved) {
+                saveApproximateIndex(approximateIndex, state.graphFile);
+                approximateIndexSaved = true;
+            }
+        }
+        scheduleRebuild(state);
+    }
+
+    private boolean needsRebuild() {
+        HnswIndex graph = approximateIndex;
+        return graph != null && graph.replacedRows() > HNSW_REBUILD_FRACTION * entries.size();
+    }
+
+    private void saveApproximateIndex(HnswIndex graph, File graphFile) {
+        try {
+            graph.save(graphFile, version);
+        } catch (IOException e) {
+            System.err.println("Failed to write HNSW index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Builds a fresh HNSW graph for the live snapshot on a background thread unless
+     * one is already running for this index file; until it is done queries use the
+     * carried-over graph. A result whose snapshot was replaced in the meantime is
+     * dropped and the newer snapshot is rebuilt instead.
+     */
+    private static void scheduleRebuild(ApproximateIndexState state) {
+        FeatureIndex live;
+        synchronized (state) {
+            live = state.live;
+        }
+        if (live == null || !live.needsRebuild() || !state.rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread builder = new Thread(() -> {
+            try {
+                while (true) {
+                    FeatureIndex target;
+                    synchronized (state) {
+                        target = state.live;
+                    }
+                    if (!target.needsRebuild()) {
+                        break;
+                    }
+                    HnswIndex rebuilt = HnswIndex.build(target.matrix, HNSW_M, HNSW_EF_CONSTRUCTION,
+                            HNSW_EF_SEARCH);
+                    synchronized (state) {
+                        if (state.live == target) {
+                            target.approximateIndex = rebuilt;
+                            target.saveApproximateIndex(rebuilt, state.graphFile);
+                            target.approximateIndexSaved = true;
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                state.rebuilding.set(false);
+            }
+            // A snapshot swapped in after the last check may need its own rebuild
+            scheduleRebuild(state);
+        }, "hnsw-rebuild");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Maps every row to the row of the previous snapshot with the same features,
+     * or -1 for new and re-extracted images.
+     */
+    private int[] previousRows(FeatureIndex previous) {
+        Map<String, Integer> rowByFileName = new HashMap<>();
+        for (int row = 0; row < previous.entries.size(); row++) {
+            rowByFileName.put(previous.entries.get(row).fileName, row);
+        }
+        int[] rows = new int[entries.size()];
+        for (int row = 0; row < rows.length; row++) {
+            Entry entry = entries.get(row);
+            Integer old = rowByFileName.get(entry.fileName);
+            rows[row] = old != null && previous.entries.get(old).checksum == entry.checksum ? old : -1;
+        }
+        return rows;
+    }
+
+    /**
+     * Loads the index from disk and brings it up to date with the image directory.
+     * Unchanged images keep their stored features, new or modified images are
+     * re-extracted in parallel and deleted images are dropped. The index file is
+     * rewritten only if something changed. Large catalogs also get an HNSW graph,
+     * stored next to the index file.
+     * @param imageDir  Directory containing the catalog images
+     * @param indexFile Binary index file (created if missing)
+     * @param listener  Progress callback, invoked from worker threads
+     * @param cancelled Polled during ingestion; returning true aborts the build
+     * @return          Up-to-date feature index
+     * @throws java.util.concurrent.CancellationException if the build was cancelled
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public static FeatureIndex loadOrBuild(File imageDir, File indexFile, CatalogIngestor.ProgressListener listener,
+                                           BooleanSupplier cancelled) throws InterruptedException {
+        Map<String, Entry> stored = new HashMap<>();
+        if (indexFile.exists()) {
+            try {
+                // Features extracted at another decode size are stale, so read() rejects them
+                for (Entry entry : read(indexFile).entries) {
+                    stored.put(entry.fileName, entry);
+                }
+            } catch (IOException e) {
+                System.err.println("Rebuilding feature index, failed to read " + indexFile + ": " + e.getMessage());
+            }
+        }
+
+        List<File> files = listImages(imageDir);
+        List<Entry> refreshed = new CatalogIngestor().ingest(files,
+                file -> refresh(file, stored.get(file.getName())), listener, cancelled);
+
+        List<Entry> entries = new ArrayList<>();
+        boolean changed = files.size() != stored.size();
+        for (int i = 0; i < files.size(); i++) {
+            Entry current = refreshed.get(i);
+            changed |= current != stored.get(files.get(i).getName());
+            if (current != null) {
+                entries.add(current);
+            }
+        }
+
+        FeatureIndex index = new FeatureIndex(entries);
+        if (changed || !indexFile.exists()) {
+            try {
+                index.write(indexFile);
+            } catch (IOException e) {
+                System.err.println("Failed to write feature index: " + e.getMessage());
+            }
+        }
+        if (QUANTIZED_SEARCH) {
+            index.attachQuantizedMatrix(indexFile, true);
+        }
+        index.attachApproximateIndex(new File(indexFile.getPath() + ".hnsw"), null);
+        index.activate();
+        return index;
+    }
+
+    /**
+     * Returns a new snapshot in which the given catalog files reflect their current
+     * state on disk: existing files are refreshed (re-extracted only if their content
+     * changed) and missing files are dropped. This snapshot is left untouched so
+     * queries holding it keep working. The new snapshot is written to the index file;
+     * call {@link #activate} on it once it replaces this one.
+     * @param imageDir  Directory containing the catalog images
+     * @param indexFile Binary index file to rewrite
+     * @param fileNames Names of the files that were created, modified or deleted
+     * @return          Updated snapshot, or this one if nothing changed
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public FeatureIndex update(File imageDir, File indexFile, Collection<String> fileNames)
+            throws InterruptedException {
+        Map<String, Entry> byFileName = new TreeMap<>();
+        for (Entry entry : entries) {
+            byFileName.put(entry.fileName, entry);
+        }
+
+        boolean changed = false;
+        List<File> present = new ArrayList<>();
+        for (String fileName : new TreeSet<>(fileNames)) {
+            File file = new File(imageDir, fileName);
+            if (isCatalogImage(fileName) && file.isFile()) {
+                present.add(file);
+            } else {
+                changed |= byFileName.remove(fileName) != null;
+            }
+        }
+
+        List<Entry> refreshed = new CatalogIngestor().ingest(present,
+                file -> refresh(file, byFileName.get(file.getName())), (completed, total) -> { }, () -> false);
+        for (int i = 0; i < present.size(); i++) {
+            String fileName = present.get(i).getName();
+            Entry current = refreshed.get(i);
+            Entry previous = current == null ? byFileName.remove(fileName) : byFileName.put(fileName, current);
+            changed |= current != previous;
+        }
+        if (!changed) {
+            return this;
+        }
+
+        FeatureIndex index = new FeatureIndex(new ArrayList<>(byFileName.values()));
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            System.err.println("Failed to write feature index: " + e.getMessage());
+        }
+        if (quantizedMatrix != null) {
+            // This catalog already passed the agreement check when it was loaded
+            index.attachQuantizedMatrix(indexFile, false);
+        }
+        index.attachApproximateIndex(new File(indexFile.getPath() + ".hnsw"), this);
+        return index;
+    }
+
+    /**
+     * Lists the catalog images (jpg and png) of a directory in file name order.
+     */
+    static List<File> listImages(File imageDir) {
+        File[] files = imageDir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> images = new ArrayList<>();
+        for (File file : files) {
+            if (isCatalogImage(file.getName())) {
+                images.add(file);
+            }
+        }
+        images.sort(Comparator.comparing(File::getName));
+        return images;
+    }
+
+    /**
+     * True for file names the catalog indexes (jpg and png).
+     */
+    static boolean isCatalogImage(String fileName) {
+        return fileName.endsWith(".jpg") || fileName.endsWith(".png");
+    }
+
+    /**
+     * Derives the attraction name from an image file name.
+     */
+    static String attractionName(File file) {
+        return file.getName().split("\\.")[0];
+    }
+
+    /**
+     * Returns the stored entry if the file is unchanged, otherwise extracts fresh features.
+     * Files whose size and timestamp match are trusted without hashing; otherwise the
+     * content checksum decides whether the features need to be recomputed.
+     */
+    private static Entry refresh(File file, Entry previous) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (previous != null && previous.length == length && previous.lastModified == lastModified) {
+            return previous;
+        }
+
+        long checksum = checksum(file);
+        if (previous != null && previous.length == length && previous.checksum == checksum) {
+            return previous.withFileState(length, lastModified, checksum);
+        }
+
+        AdvancedImageComparator.ImageFeatures features = ImageLoader.extractFeatures(file);
+        return new Entry(attractionName(file), file.getName(), length, lastModified, checksum, features);
+    }
+
+    /**
+     * Computes the CRC32 checksum of a file's content.
+     */
+    static long checksum(File file) throws IOException {
+        try (CheckedInputStream in = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), new CRC32())) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Reading drives the checksum
+            }
+            return in.getChecksum().getValue();
+        }
+    }
+
+    /**
+     * Reads an index file by memory-mapping it.
+     */
+    static FeatureIndex read(File indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported feature index format");
+            }
+            if (buffer.getInt() != ImageLoader.featureDecodeSize()) {
+                throw new IOException("features were extracted at another decode size");
+            }
+            if (buffer.getInt() != FeaturePipeline.getDefault().enabledMask()) {
+                throw new IOException("features were extracted with other feature stages enabled");
+            }
+            int count = buffer.getInt();
+            int colorSize = buffer.getInt();
+            int edgeSize = buffer.getInt();
+            int spatialSize = buffer.getInt();
+            if (count > 0 && (colorSize != FeatureMatrix.COLOR_SIZE || edgeSize != FeatureMatrix.EDGE_SIZE
+                    || spatialSize != FeatureMatrix.SPATIAL_SIZE)) {
+                throw new IOException("feature dimensions do not match");
+            }
+
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = readString(buffer);
+                String fileName = readString(buffer);
+                long length = buffer.getLong();
+                long lastModified = buffer.getLong();
+                long checksum = buffer.getLong();
+                AdvancedImageComparator.ImageFeatures features = new AdvancedImageComparator.ImageFeatures(
+                        readDoubles(buffer, colorSize), readDoubles(buffer, edgeSize), readDoubles(buffer, spatialSize));
+                entries.add(new Entry(name, fileName, length, lastModified, checksum, features));
+            }
+            return new FeatureIndex(entries);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt feature index", e);
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it into place.
+     */
+    void write(File indexFile) throws IOException {
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("could not create " + parent);
+        }
+
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            AdvancedImageComparator.ImageFeatures first = entries.isEmpty() ? null : entries.get(0).features();
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(ImageLoader.featureDecodeSize());
+            out.writeInt(FeaturePipeline.getDefault().enabledMask());
+            out.writeInt(entries.size());
+            out.writeInt(first == null ? 0 : first.colorHistogram.length);
+            out.writeInt(first == null ? 0 : first.edgeHistogram.length);
+            out.writeInt(first == null ? 0 : first.spatialColorFeatures.length);
+
+            for (Entry entry : entries) {
+                writeString(out, entry.name);
+                writeString(out, entry.fileName);
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.checksum);
+                AdvancedImageComparator.ImageFeatures features = entry.features();
+                writeDoubles(out, features.colorHistogram);
+                writeDoubles(out, features.edgeHistogram);
+                writeDoubles(out, features.spatialColorFeatures);
+            }
+        }
+
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int size) {
+        double[] values = new double[size];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + size * Double.BYTES);
+        return values;
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.nio.DoubleBuffer;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Catalog feature vectors laid out row by row in one contiguous float array.
+ * Each row holds the color, edge and spatial blocks of one image, every block
+ * normalized to unit length and pre-multiplied by its weight in
+ * {@link AdvancedImageComparator#compareImages}. Scoring a block-normalized query
+ * against a row is then a single dot product that equals the weighted sum of the
+ * three cosine similarities.
+ */
+public class FeatureMatrix {
+    static final int COLOR_SIZE = AdvancedImageComparator.COLOR_BINS * 3;
+    static final int EDGE_SIZE = 8;
+    static final int SPATIAL_SIZE = AdvancedImageComparator.GRID_SIZE * AdvancedImageComparator.GRID_SIZE * 3;
+    public static final int DIMENSIONS = COLOR_SIZE + EDGE_SIZE + SPATIAL_SIZE;
+
+    // Block weights, fixed for the lifetime of the process
+    private static final double COLOR_WEIGHT =
+            FeaturePipeline.getDefault().weight(FeatureExtractor.FeatureFamily.COLOR);
+    private static final double EDGE_WEIGHT =
+            FeaturePipeline.getDefault().weight(FeatureExtractor.FeatureFamily.EDGE);
+    private static final double SPATIAL_WEIGHT =
+            FeaturePipeline.getDefault().weight(FeatureExtractor.FeatureFamily.SPATIAL);
+    // Catalogs at least this large are scanned in parallel partitions
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    // Batch scoring tile: 256 rows (80 KB) stay cache-resident while a block of queries passes over them
+    private static final int ROW_BLOCK = 256;
+    private static final int QUERY_BLOCK = 16;
+
+    private final float[] data;
+    private final String[] names;
+
+    /**
+     * Builds the matrix from the given features.
+     * @param names    Row names
+     * @param features Features per row, aligned with names
+     */
+    public FeatureMatrix(List<String> names, List<AdvancedImageComparator.ImageFeatures> features) {
+        if (names.size() != features.size()) {
+            throw new IllegalArgumentException("names and features must have the same size");
+        }
+        this.names = names.toArray(new String[0]);
+        this.data = new float[names.size() * DIMENSIONS];
+        for (int row = 0; row < this.names.length; row++) {
+            encode(features.get(row), true, data, row * DIMENSIONS);
+        }
+    }
+
+    /**
+     * Number of rows in the matrix.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Name of the image stored at the given row.
+     */
+    public String name(int row) {
+        return names[row];
+    }
+
+    /**
+     * Encodes query features with unit-length blocks, ready for {@link #scoreAll}.
+     */
+    public static float[] encodeQuery(AdvancedImageComparator.ImageFeatures features) {
+        float[] query = new float[DIMENSIONS];
+        encode(features, false, query, 0);
+        return query;
+    }
+
+    /**
+     * Scores the query against every row in one pass over the matrix.
+     * @param query  Encoded query vector
+     * @param scores Receives one weighted similarity per row
+     */
+    public void scoreAll(float[] query, float[] scores) {
+        VectorKernels.dot(query, data, scores, names.length);
+    }
+
+    /**
+     * Selects the k rows most similar to the query without scoring into a full array.
+     * Large catalogs are split into partitions that are scanned in parallel and
+     * whose partial results are merged.
+     * @param query Encoded query vector
+     * @param k     Number of rows to keep
+     * @return      Selector holding the best rows (call {@link TopKSelector#sort()} to rank them)
+     */
+    public TopKSelector topK(float[] query, int k) {
+        int rows = names.length;
+        if (rows < PARALLEL_THRESHOLD) {
+            return topK(query, k, 0, rows);
+        }
+        int partitions = Runtime.getRuntime().availableProcessors();
+        int chunk = (rows + partitions - 1) / partitions;
+        return IntStream.range(0, partitions).parallel()
+                .mapToObj(p -> topK(query, k, p * chunk, Math.min(rows, (p + 1) * chunk)))
+                .reduce((a, b) -> {
+                    a.merge(b);
+                    return a;
+                })
+                .orElseGet(() -> new TopKSelector(k));
+    }
+
+    /**
+     * Selects the k most similar rows for each of many queries in a single pass over
+     * the matrix. The query-by-row similarity matrix is computed tile by tile, so
+     * each block of catalog rows is loaded into cache once per batch rather than
+     * once per query.
+     * @param queries Encoded query vectors
+     * @param k       Number of rows to keep per query
+     * @return        One selector per query, aligned with the input
+     */
+    public TopKSelector[] topKBatch(float[][] queries, int k) {
+        int rows = names.length;
+        if (rows < PARALLEL_THRESHOLD) {
+            return topKBatch(queries, k, 0, rows);
+        }
+        int partitions = Runtime.getRuntime().availableProcessors();
+        int chunk = (rows + partitions - 1) / partitions;
+        return IntStream.range(0, partitions).parallel()
+                .mapToObj(p -> topKBatch(queries, k, p * chunk, Math.min(rows, (p + 1) * chunk)))
+                .reduce((a, b) -> {
+                    for (int q = 0; q < a.length; q++) {
+                        a[q].merge(b[q]);
+                    }
+                    return a;
+                })
+                .orElseGet(() -> topKBatch(queries, k, 0, 0));
+    }
+
+    private TopKSelector[] topKBatch(float[][] queries, int k, int from, int to) {
+        TopKSelector[] selectors = new TopKSelector[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            selectors[q] = new TopKSelector(k);
+        }
+        for (int rowStart = from; rowStart < to; rowStart += ROW_BLOCK) {
+            int rowEnd = Math.min(to, rowStart + ROW_BLOCK);
+            for (int queryStart = 0; queryStart < queries.length; queryStart += QUERY_BLOCK) {
+                int queryEnd = Math.min(queries.length, queryStart + QUERY_BLOCK);
+                for (int row = rowStart, offset = rowStart * DIMENSIONS; row < rowEnd; row++, offset += DIMENSIONS) {
+                    for (int q = queryStart; q < queryEnd; q++) {
+                        selectors[q].offer(row, VectorKernels.dot(queries[q], 0, data, offset, DIMENSIONS));
+                    }
+                }
+            }
+        }
+        return selectors;
+    }
+
+    private TopKSelector topK(float[] query, int k, int from, int to) {
+        TopKSelector selector = new TopKSelector(k);
+        for (int row = from, offset = from * DIMENSIONS; row < to; row++, offset += DIMENSIONS) {
+            selector.offer(row, VectorKernels.dot(query, 0, data, offset, DIMENSIONS));
+        }
+        return selector;
+    }
+
+    /**
+     * Weighted similarity between the query and a single row.
+     */
+    public float score(float[] query, int row) {
+        return VectorKernels.dot(query, 0, data, row * DIMENSIONS, DIMENSIONS);
+    }
+
+    /**
+     * Weighted similarity between a query stored at an offset of a larger array and a single row.
+     */
+    public float score(float[] queries, int queryOffset, int row) {
+        return VectorKernels.dot(queries, queryOffset, data, row * DIMENSIONS, DIMENSIONS);
+    }
+
+    /**
+     * Weighted similarity between the query and raw image features stored in a
+     * buffer, such as a memory-mapped feature file, as the color, edge and spatial
+     * blocks one after another. Matches {@link #score} for a row built from the
+     * same features, up to rounding.
+     * @param index Buffer index of the first color value
+     */
+    public static float score(float[] query, DoubleBuffer features, int index) {
+        return (float) (scoreBlock(query, 0, features, index, COLOR_SIZE, COLOR_WEIGHT)
+                + scoreBlock(query, COLOR_SIZE, features, index + COLOR_SIZE, EDGE_SIZE, EDGE_WEIGHT)
+                + scoreBlock(query, COLOR_SIZE + EDGE_SIZE, features, index + COLOR_SIZE + EDGE_SIZE,
+                        SPATIAL_SIZE, SPATIAL_WEIGHT));
+    }
+
+    private static double scoreBlock(float[] query, int offset, DoubleBuffer features, int index, int length,
+                                     double weight) {
+        double dot = 0;
+        double norm = 0;
+        for (int i = 0; i < length; i++) {
+            double value = features.get(index + i);
+            dot += query[offset + i] * value;
+            norm += value * value;
+        }
+        return norm > 0 ? weight * dot / Math.sqrt(norm) : 0;
+    }
+
+    /**
+     * Copies a stored (normalized and weighted) row into dst.
+     */
+    public void copyRow(int row, float[] dst, int offset) {
+        System.arraycopy(data, row * DIMENSIONS, dst, offset, DIMENSIONS);
+    }
+
+    /**
+     * Writes the query encoding of a stored row (its blocks without the weights) into dst.
+     */
+    public void queryVector(int row, float[] dst, int offset) {
+        int src = row * DIMENSIONS;
+        unweight(src, COLOR_SIZE, COLOR_WEIGHT, dst, offset);
+        unweight(src + COLOR_SIZE, EDGE_SIZE, EDGE_WEIGHT, dst, offset + COLOR_SIZE);
+        unweight(src + COLOR_SIZE + EDGE_SIZE, SPATIAL_SIZE, SPATIAL_WEIGHT, dst, offset + COLOR_SIZE + EDGE_SIZE);
+    }
+
+    private void unweight(int src, int length, double weight, float[] dst, int offset) {
+        for (int i = 0; i < length; i++) {
+            // A zero-weighted block is all zeros and scores nothing either way
+            dst[offset + i] = weight != 0 ? (float) (data[src + i] / weight) : 0;
+        }
+    }
+
+    /**
+     * Writes the normalized (and optionally weighted) feature blocks into dst.
+     */
+    private static void encode(AdvancedImageComparator.ImageFeatures features, boolean weighted,
+                               float[] dst, int offset) {
+        offset = encodeBlock(features.colorHistogram, weighted ? COLOR_WEIGHT : 1, dst, offset);
+        offset = encodeBlock(features.edgeHistogram, weighted ? EDGE_WEIGHT : 1, dst, offset);
+        encodeBlock(features.spatialColorFeatures, weighted ? SPATIAL_WEIGHT : 1, dst, offset);
+    }
+
+    private static int encodeBlock(double[] block, double weight, float[] dst, int offset) {
+        double norm = 0;
+        for (double value : block) {
+            norm += value * value;
+        }
+        double scale = norm > 0 ? weight / Math.sqrt(norm) : 0;
+        for (int i = 0; i < block.length; i++) {
+            dst[offset + i] = (float) (block[i] * scale);
+        }
+        return offset + block.length;
+    }
+}
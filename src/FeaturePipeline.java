@@ -0,0 +1,376 @@
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Composes feature extraction stages and drives them with a single sweep over the
+ * image: every row needed by at least one enabled stage is read once into a reused
+ * two-row ARGB buffer and handed to the stages that asked for it. Disabled stages
+ * return all-zero features, so the feature layout never changes.
+ *
+ * <p>The default pipeline is configured through system properties, for example
+ * {@code -Dfeature.edge.enabled=false} or {@code -Dfeature.spatial.weight=0.4}.
+ * With {@code -Dfeature.profile=true} the pipeline also records, for every stage,
+ * the time spent in it and the bytes it allocated; this is off by default because
+ * the measurements around each row cost a noticeable share of extraction time.
+ */
+public class FeaturePipeline {
+
+    /** Channel value to unit range, matching Color.getRed() and friends (stored as float by Color). */
+    static final double[] UNIT = new double[256];
+
+    static {
+        for (int i = 0; i < UNIT.length; i++) {
+            UNIT[i] = (float) (i / 255.0);
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+    private static final boolean PROFILE = Boolean.getBoolean("feature.profile");
+    private static final FeaturePipeline DEFAULT = fromSystemProperties();
+
+    /**
+     * Source of ARGB pixel rows.
+     */
+    public interface RowReader {
+        /**
+         * Copies row y as non-premultiplied ARGB values into dst starting at offset.
+         */
+        void readRow(int y, int[] dst, int offset);
+    }
+
+    /**
+     * Time and allocation totals of one stage since the last reset; all zero unless
+     * profiling is enabled.
+     */
+    public static class StageStats {
+        public final FeatureExtractor.FeatureFamily family;
+        public final long images;
+        public final long nanos;
+        public final long allocatedBytes;
+
+        StageStats(FeatureExtractor.FeatureFamily family, long images, long nanos, long allocatedBytes) {
+            this.family = family;
+            this.images = images;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            long perImage = Math.max(1, images);
+            return String.format("%s: %d images, %.1f us/image, %d bytes/image", family.name().toLowerCase(),
+                    images, nanos / 1000.0 / perImage, allocatedBytes / perImage);
+        }
+    }
+
+    /**
+     * Per-thread stage instances and row buffer.
+     */
+    private static class Worker {
+        final FeatureExtractor[] stages;
+        int[] rows = new int[0];
+
+        Worker(FeatureExtractor[] stages) {
+            this.stages = stages;
+        }
+    }
+
+    private final FeatureExtractor.FeatureFamily[] families;
+    private final boolean[] enabled;
+    private final double[] weights;
+    private final int[] dimensions;
+    private final LongAdder[] images;
+    private final LongAdder[] nanos;
+    private final LongAdder[] allocatedBytes;
+    private final ThreadLocal<Worker> workers;
+
+    /**
+     * Creates a pipeline from stage factories.
+     * @param stages  Creates one stage instance per extracting thread; one per feature family
+     * @param enabled Families to compute; others yield zero features
+     * @param weights Similarity weight per family; families without one use the stage default
+     * @throws IllegalArgumentException if a weight is negative or not finite
+     */
+    public FeaturePipeline(List<Supplier<FeatureExtractor>> stages,
+                           Map<FeatureExtractor.FeatureFamily, Boolean> enabled,
+                           Map<FeatureExtractor.FeatureFamily, Double> weights) {
+        int count = stages.size();
+        this.families = new FeatureExtractor.FeatureFamily[count];
+        this.enabled = new boolean[count];
+        this.weights = new double[count];
+        this.dimensions = new int[count];
+        this.images = new LongAdder[count];
+        this.nanos = new LongAdder[count];
+        this.allocatedBytes = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            FeatureExtractor stage = stages.get(i).get();
+            families[i] = stage.family();
+            this.enabled[i] = enabled.getOrDefault(stage.family(), true);
+            double weight = weights.getOrDefault(stage.family(), stage.defaultWeight());
+            if (!isValidWeight(weight)) {
+                throw new IllegalArgumentException("invalid weight for " + stage.family() + ": " + weight);
+            }
+            this.weights[i] = this.enabled[i] ? weight : 0;
+            dimensions[i] = stage.dimensions();
+            images[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+            allocatedBytes[i] = new LongAdder();
+        }
+        for (FeatureExtractor.FeatureFamily family : FeatureExtractor.FeatureFamily.values()) {
+            if (indexOf(family) < 0) {
+                throw new IllegalArgumentException("no stage for " + family);
+            }
+        }
+        List<Supplier<FeatureExtractor>> factories = new ArrayList<>(stages);
+        this.workers = ThreadLocal.withInitial(() -> {
+            FeatureExtractor[] instances = new FeatureExtractor[factories.size()];
+            for (int i = 0; i < instances.length; i++) {
+                instances[i] = factories.get(i).get();
+            }
+            return new Worker(instances);
+        });
+    }
+
+    /**
+     * Returns the application pipeline: color, edge and spatial stages configured
+     * from system properties.
+     */
+    public static FeaturePipeline getDefault() {
+        return DEFAULT;
+    }
+
+    private static FeaturePipeline fromSystemProperties() {
+        Map<FeatureExtractor.FeatureFamily, Boolean> enabled = new EnumMap<>(FeatureExtractor.FeatureFamily.class);
+        Map<FeatureExtractor.FeatureFamily, Double> weights = new EnumMap<>(FeatureExtractor.FeatureFamily.class);
+        for (FeatureExtractor.FeatureFamily family : FeatureExtractor.FeatureFamily.values()) {
+            String prefix = "feature." + family.name().toLowerCase() + ".";
+            enabled.put(family, Boolean.parseBoolean(System.getProperty(prefix + "enabled", "true")));
+            String weight = System.getProperty(prefix + "weight");
+            if (weight != null) {
+                try {
+                    double value = Double.parseDouble(weight);
+                    if (!isValidWeight(value)) {
+                        throw new NumberFormatException();
+                    }
+                    weights.put(family, value);
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring invalid " + prefix + "weight: " + weight);
+                }
+            }
+        }
+        return new FeaturePipeline(List.of(ColorHistogramExtractor::new, EdgeHistogramExtractor::new,
+                SpatialGridExtractor::new), enabled, weights);
+    }
+
+    private static boolean isValidWeight(double weight) {
+        return weight >= 0 && !Double.isInfinite(weight);
+    }
+
+    /**
+     * True if the family is computed.
+     */
+    public boolean isEnabled(FeatureExtractor.FeatureFamily family) {
+        int stage = indexOf(family);
+        return stage >= 0 && enabled[stage];
+    }
+
+    /**
+     * Similarity weight of the family; 0 when it is disabled or has no stage.
+     */
+    public double weight(FeatureExtractor.FeatureFamily family) {
+        int stage = indexOf(family);
+        return stage >= 0 ? weights[stage] : 0;
+    }
+
+    /**
+     * Bit set of the enabled families by ordinal. Features extracted under different
+     * masks are not comparable.
+     */
+    public int enabledMask() {
+        int mask = 0;
+        for (int i = 0; i < families.length; i++) {
+            if (enabled[i]) {
+                mask |= 1 << families[i].ordinal();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Identifies the enabled families and their weights, i.e. everything that
+     * influences similarity scores.
+     */
+    public long configurationHash() {
+        long hash = enabledMask();
+        for (double weight : weights) {
+            hash = hash * 31 + Double.doubleToLongBits(weight);
+        }
+        return hash;
+    }
+
+    /**
+     * Extracts all image features from a JavaFX image.
+     */
+    public AdvancedImageComparator.ImageFeatures extract(Image image) {
+        PixelReader reader = image.getPixelReader();
+        int width = (int) image.getWidth();
+        return extract(width, (int) image.getHeight(),
+                (y, dst, offset) -> reader.getPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), dst, offset, width));
+    }
+
+    /**
+     * Extracts all image features from an image of the given size.
+     * @param width  Image width in pixels
+     * @param height Image height in pixels
+     * @param reader Supplies pixel rows on demand
+     * @return       Color, edge and spatial features
+     */
+    public AdvancedImageComparator.ImageFeatures extract(int width, int height, RowReader reader) {
+        Worker worker = workers.get();
+        FeatureExtractor[] stages = worker.stages;
+        double[][] features = new double[stages.length][];
+        boolean empty = width <= 0 || height <= 0;
+
+        long[] stageNanos = new long[stages.length];
+        long[] stageBytes = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            if (enabled[i] && !empty) {
+                long bytes = allocated();
+                long start = clock();
+                stages[i].begin(width, height);
+                stageNanos[i] += clock() - start;
+                stageBytes[i] += allocated() - bytes;
+            }
+        }
+
+        if (!empty) {
+            if (worker.rows.length < 2 * width) {
+                worker.rows = new int[2 * width];
+            }
+            int[] rows = worker.rows;
+            for (int y = 0; y < height; y++) {
+                boolean needed = false;
+                for (int i = 0; i < stages.length && !needed; i++) {
+                    needed = enabled[i] && stages[i].needsRow(y);
+                }
+                if (!needed) {
+                    continue;
+                }
+
+                reader.readRow(y, rows, (y & 1) * width);
+                for (int i = 0; i < stages.length; i++) {
+                    if (enabled[i] && stages[i].needsRow(y)) {
+                        if (PROFILE) {
+                            long bytes = allocated();
+                            long start = System.nanoTime();
+                            stages[i].acceptRow(y, rows, width);
+                            stageNanos[i] += System.nanoTime() - start;
+                            stageBytes[i] += allocated() - bytes;
+                        } else {
+                            stages[i].acceptRow(y, rows, width);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < stages.length; i++) {
+            if (enabled[i] && !empty) {
+                long bytes = allocated();
+                long start = clock();
+                features[i] = stages[i].finish();
+                stageNanos[i] += clock() - start;
+                stageBytes[i] += allocated() - bytes;
+
+                if (PROFILE) {
+                    images[i].increment();
+                    nanos[i].add(stageNanos[i]);
+                    allocatedBytes[i].add(stageBytes[i]);
+                }
+            } else {
+                features[i] = new double[dimensions[i]];
+            }
+        }
+        return new AdvancedImageComparator.ImageFeatures(features[indexOf(FeatureExtractor.FeatureFamily.COLOR)],
+                features[indexOf(FeatureExtractor.FeatureFamily.EDGE)],
+                features[indexOf(FeatureExtractor.FeatureFamily.SPATIAL)]);
+    }
+
+    /**
+     * Returns the per-stage totals recorded since the last reset.
+     */
+    public List<StageStats> statistics() {
+        List<StageStats> stats = new ArrayList<>(families.length);
+        for (int i = 0; i < families.length; i++) {
+            stats.add(new StageStats(families[i], images[i].sum(), nanos[i].sum(), allocatedBytes[i].sum()));
+        }
+        return stats;
+    }
+
+    /**
+     * Clears the recorded per-stage totals.
+     */
+    public void resetStatistics() {
+        for (int i = 0; i < families.length; i++) {
+            images[i].reset();
+            nanos[i].reset();
+            allocatedBytes[i].reset();
+        }
+    }
+
+    private int indexOf(FeatureExtractor.FeatureFamily family) {
+        for (int i = 0; i < families.length; i++) {
+            if (families[i] == family) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or 0 if the JVM cannot tell
+     * or profiling is off.
+     */
+    private static long allocated() {
+        return PROFILE && THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private static long clock() {
+        return PROFILE ? System.nanoTime() : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scales values in place so they sum to 1 (unless they are all zero).
+     */
+    static void normalize(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        if (sum > 0) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] /= sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Fixed-size summary of an image KNN graph for fast approximate graph comparison.
+ * It holds the centroid of the node features and a histogram of the edge weights,
+ * so two graphs compare in time independent of their node and edge counts.
+ */
+public class GraphSignature {
+    private static final int EDGE_BINS = 16;
+
+    private final double[] centroid;
+    private final double[] edgeHistogram = new double[EDGE_BINS];
+    private final double meanEdgeWeight;
+
+    private GraphSignature(KNNImageGraph.ImageGraph graph) {
+        int dimensions = graph.nodes.isEmpty() ? 0 : graph.nodes.get(0).features.length;
+        this.centroid = new double[dimensions];
+
+        long edges = 0;
+        double weightSum = 0;
+        for (KNNImageGraph.ImageNode node : graph.nodes) {
+            for (int d = 0; d < dimensions; d++) {
+                centroid[d] += node.features[d];
+            }
+            for (KNNImageGraph.Edge edge : node.edges) {
+                // w / (1 + w) maps any distance into [0, 1) with finer bins for close neighbours
+                double scaled = edge.weight / (1 + edge.weight);
+                edgeHistogram[Math.min(EDGE_BINS - 1, (int) (scaled * EDGE_BINS))]++;
+                weightSum += edge.weight;
+                edges++;
+            }
+        }
+        for (int d = 0; d < dimensions; d++) {
+            centroid[d] /= Math.max(1, graph.nodes.size());
+        }
+        for (int bin = 0; bin < EDGE_BINS; bin++) {
+            edgeHistogram[bin] /= Math.max(1, edges);
+        }
+        this.meanEdgeWeight = edges == 0 ? 0 : weightSum / edges;
+    }
+
+    /**
+     * Computes the signature of a graph in one pass over its nodes and edges.
+     */
+    public static GraphSignature of(KNNImageGraph.ImageGraph graph) {
+        return new GraphSignature(graph);
+    }
+
+    /**
+     * Similarity of two signatures in [0, 1]: closeness of the feature centroids times
+     * the overlap of the edge-weight distributions, mirroring the node and structure
+     * terms of the exact graph similarity.
+     */
+    public double similarity(GraphSignature other) {
+        double sum = VectorKernels.squaredL2(centroid, 0, other.centroid, 0,
+                Math.min(centroid.length, other.centroid.length));
+        double nodeSim = 1 / (1 + Math.sqrt(sum));
+
+        // Histogram intersection, damped by the difference in mean edge weight
+        double overlap = 0;
+        for (int bin = 0; bin < EDGE_BINS; bin++) {
+            overlap += Math.min(edgeHistogram[bin], other.edgeHistogram[bin]);
+        }
+        double structureSim = overlap * (1 - Math.min(1, Math.abs(meanEdgeWeight - other.meanEdgeWeight)));
+
+        return nodeSim * structureSim;
+    }
+}
@@ -134,6 +134,6 @@ public class GraphVisualizer {
 	}
 
 	private static double distance(Point p1, Point p2) {
-		return Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2));
+		return VectorKernels.pointDistance(p1.x, p1.y, p2.x, p2.y);
 	}
 }
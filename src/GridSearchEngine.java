@@ -0,0 +1,581 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A* search over the route planner's movement lattice: points {@link #STEP} pixels
+ * apart in eight directions, anchored at the start point. Lattice cells are int
+ * indices into flat arrays for the g-scores, parents and heap positions, and the
+ * open set is an indexed binary heap with decrease-key, so a query allocates
+ * nothing but the returned path. The engine is reused across queries and only
+ * resets the cells the previous query touched. Instances are not thread-safe.
+ *
+ * <p>Besides plain A*, queries can use Jump Point Search or landmark bounds (see {@link SearchMode}).
+ * Diagonal moves may pass between two blocked points, as in the original planner.
+ */
+public class GridSearchEngine {
+    /** Distance in pixels between neighbouring lattice points. */
+    public static final int STEP = 5;
+    /** A lattice point closer than this to the destination ends the search. */
+    public static final double GOAL_TOLERANCE = 10;
+    /**
+     * Heuristic weight that reproduces the original planner's search order: it
+     * charged one unit per step but estimated the remaining distance in pixels.
+     */
+    public static final double LEGACY_HEURISTIC_WEIGHT = STEP;
+
+    private static final float DIAGONAL = (float) (STEP * Math.sqrt(2));
+    private static final int[] DX = {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] DY = {-1, 0, 1, -1, 1, -1, 0, 1};
+    private static final int NONE = -1;
+
+    /**
+     * How a query explores the lattice.
+     */
+    public enum SearchMode {
+        /** Expands all eight neighbours of every point taken from the open set. */
+        ASTAR,
+        /**
+         * Jump Point Search: runs straight and diagonally through open space and
+         * only queues points where a route may have to turn, so far fewer points
+         * pass through the open set. With heuristic weight 1 or below routes are
+         * shortest.
+         */
+        JUMP_POINT,
+        /**
+         * Hierarchical search over precomputed cluster entrances, for large maps.
+         * Served by {@link HierarchicalPathFinder} rather than this engine.
+         */
+        HIERARCHICAL,
+        /**
+         * Bidirectional A*: a forward search from the start and a backward search
+         * from every goal point meet in the middle. Destinations enclosed by unsafe
+         * zones fail fast, as the backward search runs out of points. With heuristic
+         * weight 1 or below routes are shortest.
+         */
+        BIDIRECTIONAL,
+        /**
+         * A* guided by the larger of the straight-line distance and the ALT bounds
+         * of the landmarks set with {@link #setLandmarks}, which see around unsafe
+         * zones. With heuristic weight 1 or below routes are shortest.
+         */
+        LANDMARK
+    }
+
+    private final int width;
+    private final int height;
+    private final float[] g;
+    private final int[] parent;
+    private final IndexedHeap open;
+    private final int[] touched;
+    private int touchedCount;
+
+    private double heuristicWeight = LEGACY_HEURISTIC_WEIGHT;
+    private int originX;
+    private int originY;
+    private int columns;
+    private int rows;
+    private OccupancyGrid grid;
+    private int goalX;
+    private int goalY;
+    private int expanded;
+    private int expandedBackward;
+    private LandmarkHeuristic landmarks;
+    private boolean landmarkQuery;
+    private float[] landmarkLower;
+    private float[] landmarkUpper;
+    private int scanned;
+
+    // Backward search of bidirectional queries, allocated on first use
+    private float[] gBack;
+    private int[] parentBack;
+    private IndexedHeap openBack;
+    private int[] touchedBack;
+    private int touchedBackCount;
+
+    /**
+     * Creates an engine for maps of the given size in pixels.
+     */
+    public GridSearchEngine(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int cells = ((width + STEP - 1) / STEP) * ((height + STEP - 1) / STEP);
+        this.g = new float[cells];
+        this.parent = new int[cells];
+        this.open = new IndexedHeap(cells);
+        this.touched = new int[cells];
+        Arrays.fill(g, Float.POSITIVE_INFINITY);
+        Arrays.fill(parent, NONE);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Sets how strongly the straight-line distance to the destination is weighted
+     * against the path cost; 1 yields shortest routes, larger values expand fewer
+     * points. Defaults to {@link #LEGACY_HEURISTIC_WEIGHT}. Up to weight 1 the
+     * distance is measured to the edge of the goal region, so it never overestimates;
+     * larger weights use the distance to the destination itself, like the original
+     * planner.
+     */
+    public void setHeuristicWeight(double heuristicWeight) {
+        this.heuristicWeight = heuristicWeight;
+    }
+
+    /**
+     * Sets the landmark tables used by {@link SearchMode#LANDMARK} queries; they
+     * must have been computed for the zones of the grids searched.
+     */
+    public void setLandmarks(LandmarkHeuristic landmarks) {
+        this.landmarks = landmarks;
+        if (landmarks != null) {
+            landmarkLower = new float[landmarks.count()];
+            landmarkUpper = new float[landmarks.count()];
+        }
+    }
+
+    /**
+     * Number of lattice points taken from the open set by the last query.
+     */
+    public int expanded() {
+        return expanded;
+    }
+
+    /**
+     * Number of lattice points the last query's forward search expanded; all of
+     * them except in bidirectional queries.
+     */
+    public int expandedForward() {
+        return expanded - expandedBackward;
+    }
+
+    /**
+     * Number of lattice points the last bidirectional query's backward search expanded.
+     */
+    public int expandedBackward() {
+        return expandedBackward;
+    }
+
+    /**
+     * Number of lattice points the last query examined as neighbours or while jumping.
+     */
+    public int scanned() {
+        return scanned;
+    }
+
+    /**
+     * Finds a route from start to within {@link #GOAL_TOLERANCE} of the destination
+     * by expanding every neighbour.
+     * @see #findPath(Point, Point, OccupancyGrid, SearchMode)
+     */
+    public List<Point> findPath(Point start, Point destination, OccupancyGrid grid) {
+        return findPath(start, destination, grid, SearchMode.ASTAR);
+    }
+
+    /**
+     * Finds a route from start to within {@link #GOAL_TOLERANCE} of the destination.
+     * @param grid Obstacles; must match the engine's map size
+     * @param mode How to explore the lattice
+     * @return     Consecutive lattice points from start to the last point, or an
+     *             empty list if the destination is unreachable
+     */
+    public List<Point> findPath(Point start, Point destination, OccupancyGrid grid, SearchMode mode) {
+        int last = search(start.x, start.y, destination.x, destination.y, grid, mode);
+        if (last == NONE) {
+            return Collections.emptyList();
+        }
+
+        List<Point> path = new ArrayList<>();
+        for (int cell = last; cell != NONE; cell = parent[cell]) {
+            path.add(new Point(x(cell), y(cell)));
+            int from = parent[cell];
+            if (from != NONE) {
+                // Fill in the points a jump skipped
+                int dx = Integer.signum(from % columns - cell % columns);
+                int dy = Integer.signum(from / columns - cell / columns);
+                int steps = Math.max(Math.abs(from % columns - cell % columns), Math.abs(from / columns - cell / columns));
+                for (int s = 1; s < steps; s++) {
+                    path.add(new Point(x(cell) + dx * s * STEP, y(cell) + dy * s * STEP));
+                }
+            }
+        }
+        Collections.reverse(path);
+        if (mode == SearchMode.BIDIRECTIONAL) {
+            for (int cell = parentBack[last]; cell != NONE; cell = parentBack[cell]) {
+                path.add(new Point(x(cell), y(cell)));
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Runs the search without building a path.
+     * @return The lattice cell that reached the destination, or -1. For
+     *         bidirectional queries, the cell where the two searches met.
+     */
+    public int search(int startX, int startY, int goalX, int goalY, OccupancyGrid grid, SearchMode mode) {
+        if (mode == SearchMode.HIERARCHICAL) {
+            throw new IllegalArgumentException("hierarchical queries run on HierarchicalPathFinder");
+        }
+        if (mode == SearchMode.LANDMARK && landmarks == null) {
+            throw new IllegalStateException("landmark queries need landmark tables");
+        }
+        reset();
+        if (startX < 0 || startX >= width || startY < 0 || startY >= height) {
+            return NONE;
+        }
+        this.grid = grid;
+        this.goalX = goalX;
+        this.goalY = goalY;
+        originX = startX % STEP;
+        originY = startY % STEP;
+        columns = (width - originX + STEP - 1) / STEP;
+        rows = (height - originY + STEP - 1) / STEP;
+
+        int startColumn = startX / STEP;
+        int startRow = startY / STEP;
+        landmarkQuery = mode == SearchMode.LANDMARK;
+        if (landmarkQuery) {
+            prepareLandmarks();
+        }
+        if (mode == SearchMode.BIDIRECTIONAL) {
+            return searchBidirectional(startRow * columns + startColumn);
+        }
+        update(startRow * columns + startColumn, 0, heuristic(startColumn, startRow), NONE);
+        while (!open.isEmpty()) {
+            int current = open.pop();
+            expanded++;
+            if (isGoal(current % columns, current / columns)) {
+                return current;
+            }
+            if (mode == SearchMode.JUMP_POINT) {
+                expandJumpPoints(current);
+            } else {
+                expandNeighbours(current);
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Alternates between the forward and backward search, advancing the one with
+     * the smaller open set. Every time one side reaches a point the other has
+     * already reached, the joined route becomes a candidate.
+     *
+     * <p>Both sides use the balanced potential p = (h_forward - h_backward) / 2:
+     * forward keys are g + p and backward keys g - p. As p is consistent in both
+     * directions, the two searches are Dijkstra searches over the same reduced edge
+     * costs, and the search may stop as soon as the two smallest keys add up to at
+     * least the best candidate, or when either side runs out of points.
+     */
+    private int searchBidirectional(int start) {
+        prepareBackward();
+        int startColumn = start % columns;
+        int startRow = start / columns;
+        if (isGoal(startColumn, startRow)) {
+            return start;
+        }
+
+        int reach = (int) Math.ceil(GOAL_TOLERANCE / STEP);
+        int goalColumn = Math.floorDiv(goalX - originX, STEP);
+        int goalRow = Math.floorDiv(goalY - originY, STEP);
+        for (int cy = goalRow - reach; cy <= goalRow + reach + 1; cy++) {
+            for (int cx = goalColumn - reach; cx <= goalColumn + reach + 1; cx++) {
+                if (!isBlocked(cx, cy) && isGoal(cx, cy)) {
+                    updateBackward(cy * columns + cx, 0, -potential(cx, cy, start), NONE);
+                }
+            }
+        }
+        update(start, 0, potential(startColumn, startRow, start), NONE);
+
+        float best = Float.POSITIVE_INFINITY;
+        int meeting = NONE;
+        while (!open.isEmpty() && !openBack.isEmpty()
+                && open.key(open.peek()) + openBack.key(openBack.peek()) < best) {
+            boolean forward = open.size() <= openBack.size();
+            int current = forward ? open.pop() : openBack.pop();
+            expanded++;
+            if (!forward) {
+                expandedBackward++;
+            }
+            int cx = current % columns;
+            int cy = current / columns;
+            for (int dir = 0; dir < DX.length; dir++) {
+                int nx = cx + DX[dir];
+                int ny = cy + DY[dir];
+                scanned++;
+                if (isBlocked(nx, ny)) {
+                    continue;
+                }
+                int next = ny * columns + nx;
+                float cost = DX[dir] != 0 && DY[dir] != 0 ? DIAGONAL : STEP;
+                if (forward) {
+                    float tentative = g[current] + cost;
+                    if (tentative < g[next]) {
+                        update(next, tentative, tentative + potential(nx, ny, start), current);
+                        if (tentative + gBack[next] < best) {
+                            best = tentative + gBack[next];
+                            meeting = next;
+                        }
+                    }
+                } else {
+                    float tentative = gBack[current] + cost;
+                    if (tentative < gBack[next]) {
+                        updateBackward(next, tentative, tentative - potential(nx, ny, start), current);
+                        if (tentative + g[next] < best) {
+                            best = tentative + g[next];
+                            meeting = next;
+                        }
+                    }
+                }
+            }
+        }
+        return meeting;
+    }
+
+    /**
+     * Finds, per landmark, the range of distances to the free lattice points that
+     * end the search.
+     */
+    private void prepareLandmarks() {
+        Arrays.fill(landmarkLower, Float.POSITIVE_INFINITY);
+        Arrays.fill(landmarkUpper, Float.NEGATIVE_INFINITY);
+        int reach = (int) Math.ceil(GOAL_TOLERANCE / STEP);
+        int goalColumn = Math.floorDiv(goalX - originX, STEP);
+        int goalRow = Math.floorDiv(goalY - originY, STEP);
+        for (int cy = goalRow - reach; cy <= goalRow + reach + 1; cy++) {
+            for (int cx = goalColumn - reach; cx <= goalColumn + reach + 1; cx++) {
+                if (isBlocked(cx, cy) || !isGoal(cx, cy)) {
+                    continue;
+                }
+                for (int l = 0; l < landmarkLower.length; l++) {
+                    float d = landmarks.distance(l, originX + cx * STEP, originY + cy * STEP);
+                    if (d != Float.POSITIVE_INFINITY) {
+                        landmarkLower[l] = Math.min(landmarkLower[l], d);
+                        landmarkUpper[l] = Math.max(landmarkUpper[l], d);
+                    }
+                }
+            }
+        }
+    }
+
+    private void updateBackward(int cell, float gScore, float fScore, int from) {
+        if (gBack[cell] == Float.POSITIVE_INFINITY) {
+            touchedBack[touchedBackCount++] = cell;
+        }
+        gBack[cell] = gScore;
+        parentBack[cell] = from;
+        openBack.update(cell, fScore);
+    }
+
+    private void prepareBackward() {
+        if (gBack == null) {
+            gBack = new float[g.length];
+            parentBack = new int[g.length];
+            openBack = new IndexedHeap(g.length);
+            touchedBack = new int[g.length];
+            Arrays.fill(gBack, Float.POSITIVE_INFINITY);
+            Arrays.fill(parentBack, NONE);
+        }
+        for (int i = 0; i < touchedBackCount; i++) {
+            gBack[touchedBack[i]] = Float.POSITIVE_INFINITY;
+            parentBack[touchedBack[i]] = NONE;
+        }
+        touchedBackCount = 0;
+        openBack.clear();
+    }
+
+    private void expandNeighbours(int current) {
+        int cx = current % columns;
+        int cy = current / columns;
+        for (int dir = 0; dir < DX.length; dir++) {
+            int nx = cx + DX[dir];
+            int ny = cy + DY[dir];
+            scanned++;
+            if (!isBlocked(nx, ny)) {
+                relax(current, nx, ny, DX[dir] != 0 && DY[dir] != 0 ? DIAGONAL : STEP);
+            }
+        }
+    }
+
+    /**
+     * Queues the jump points reachable from the current point. The start looks in
+     * all directions; other points only continue the direction they were reached
+     * from, plus the turns forced by an adjacent obstacle.
+     */
+    private void expandJumpPoints(int current) {
+        int cx = current % columns;
+        int cy = current / columns;
+        int from = parent[current];
+        if (from == NONE) {
+            for (int dir = 0; dir < DX.length; dir++) {
+                jumpFrom(current, DX[dir], DY[dir]);
+            }
+            return;
+        }
+
+        int dx = Integer.signum(cx - from % columns);
+        int dy = Integer.signum(cy - from / columns);
+        if (dx != 0 && dy != 0) {
+            jumpFrom(current, dx, dy);
+            jumpFrom(current, dx, 0);
+            jumpFrom(current, 0, dy);
+            if (isBlocked(cx - dx, cy)) {
+                jumpFrom(current, -dx, dy);
+            }
+            if (isBlocked(cx, cy - dy)) {
+                jumpFrom(current, dx, -dy);
+            }
+        } else if (dx != 0) {
+            jumpFrom(current, dx, 0);
+            if (isBlocked(cx, cy + 1)) {
+                jumpFrom(current, dx, 1);
+            }
+            if (isBlocked(cx, cy - 1)) {
+                jumpFrom(current, dx, -1);
+            }
+        } else {
+            jumpFrom(current, 0, dy);
+            if (isBlocked(cx + 1, cy)) {
+                jumpFrom(current, 1, dy);
+            }
+            if (isBlocked(cx - 1, cy)) {
+                jumpFrom(current, -1, dy);
+            }
+        }
+    }
+
+    private void jumpFrom(int current, int dx, int dy) {
+        int cx = current % columns;
+        int cy = current / columns;
+        int target = jump(cx, cy, dx, dy);
+        if (target != NONE) {
+            int steps = Math.max(Math.abs(target % columns - cx), Math.abs(target / columns - cy));
+            relax(current, target % columns, target / columns, steps * (dx != 0 && dy != 0 ? DIAGONAL : STEP));
+        }
+    }
+
+    /**
+     * Moves from a point in one direction until reaching a jump point: a goal
+     * point, a point with a neighbour only reachable by turning there, or (moving
+     * diagonally) a point from which a straight run reaches a jump point.
+     * @return The jump point's cell, or -1 if the run ends at an obstacle or the map edge
+     */
+    private int jump(int cx, int cy, int dx, int dy) {
+        while (true) {
+            cx += dx;
+            cy += dy;
+            scanned++;
+            if (isBlocked(cx, cy)) {
+                return NONE;
+            }
+            if (isGoal(cx, cy)) {
+                return cy * columns + cx;
+            }
+            if (dx != 0 && dy != 0) {
+                if ((isBlocked(cx - dx, cy) && !isBlocked(cx - dx, cy + dy))
+                        || (isBlocked(cx, cy - dy) && !isBlocked(cx + dx, cy - dy))
+                        || jump(cx, cy, dx, 0) != NONE || jump(cx, cy, 0, dy) != NONE) {
+                    return cy * columns + cx;
+                }
+            } else if (dx != 0) {
+                if ((isBlocked(cx, cy + 1) && !isBlocked(cx + dx, cy + 1))
+                        || (isBlocked(cx, cy - 1) && !isBlocked(cx + dx, cy - 1))) {
+                    return cy * columns + cx;
+                }
+            } else if ((isBlocked(cx + 1, cy) && !isBlocked(cx + 1, cy + dy))
+                    || (isBlocked(cx - 1, cy) && !isBlocked(cx - 1, cy + dy))) {
+                return cy * columns + cx;
+            }
+        }
+    }
+
+    private void relax(int from, int cx, int cy, float cost) {
+        int next = cy * columns + cx;
+        float tentative = g[from] + cost;
+        if (tentative < g[next]) {
+            update(next, tentative, tentative + heuristic(cx, cy), from);
+        }
+    }
+
+    /**
+     * True for lattice points off the map or inside an unsafe zone.
+     */
+    private boolean isBlocked(int cx, int cy) {
+        return cx < 0 || cx >= columns || cy < 0 || cy >= rows
+                || grid.isBlocked(originX + cx * STEP, originY + cy * STEP);
+    }
+
+    private boolean isGoal(int cx, int cy) {
+        return VectorKernels.pointDistance(originX + cx * STEP, originY + cy * STEP, goalX, goalY) < GOAL_TOLERANCE;
+    }
+
+    /**
+     * Balanced bidirectional potential: half the difference between the distance to
+     * the edge of the goal region and the distance to the start, both of which
+     * never overestimate.
+     */
+    private float potential(int cx, int cy, int start) {
+        double toGoal = Math.max(0, VectorKernels.pointDistance(originX + cx * STEP, originY + cy * STEP,
+                goalX, goalY) - GOAL_TOLERANCE);
+        double toStart = VectorKernels.pointDistance(cx, cy, start % columns, start / columns) * STEP;
+        return (float) (heuristicWeight * (toGoal - toStart) / 2);
+    }
+
+    private float heuristic(int cx, int cy) {
+        int px = originX + cx * STEP;
+        int py = originY + cy * STEP;
+        double distance = VectorKernels.pointDistance(px, py, goalX, goalY);
+        if (heuristicWeight <= 1 || landmarkQuery) {
+            // Measured to the nearest point that ends the search
+            distance = Math.max(0, distance - GOAL_TOLERANCE);
+        }
+        if (landmarkQuery) {
+            distance = Math.max(distance, landmarks.estimate(px, py, landmarkLower, landmarkUpper));
+        }
+        return (float) (heuristicWeight * distance);
+    }
+
+    private int x(int cell) {
+        return originX + (cell % columns) * STEP;
+    }
+
+    private int y(int cell) {
+        return originY + (cell / columns) * STEP;
+    }
+
+    /**
+     * Records a better path to a cell and queues it at its new priority.
+     */
+    private void update(int cell, float gScore, float fScore, int from) {
+        if (g[cell] == Float.POSITIVE_INFINITY) {
+            touched[touchedCount++] = cell;
+        }
+        g[cell] = gScore;
+        parent[cell] = from;
+        open.update(cell, fScore);
+    }
+
+    /**
+     * Restores the cells touched by the previous query to their initial state.
+     */
+    private void reset() {
+        for (int i = 0; i < touchedCount; i++) {
+            int cell = touched[i];
+            g[cell] = Float.POSITIVE_INFINITY;
+            parent[cell] = NONE;
+        }
+        touchedCount = 0;
+        open.clear();
+        expanded = 0;
+        expandedBackward = 0;
+        scanned = 0;
+    }
+}
@@ -0,0 +1,625 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hierarchical A* (HPA*) for large maps. The route lattice, anchored at the map
+ * origin, is split into square clusters of lattice points. Where free points face
+ * each other across a cluster border, the border gets entrances: one pair of
+ * points in the middle of a short opening, or one at each end of a long one.
+ * Every cluster stores the shortest distances between its entrance points, which
+ * makes an abstract graph far smaller than the lattice. A query searches that graph
+ * first and then refines only the cluster crossings on the chosen route into
+ * lattice steps, so its cost grows with the number of clusters the route crosses
+ * rather than with the map resolution.
+ *
+ * <p>The finder follows its occupancy grid: before each query it rebuilds the
+ * clusters touching the rectangles changed since the last query, or everything if
+ * the grid's change log no longer covers them. Routes are close to, but not always
+ * exactly, as short as a full lattice search. Callers hold the grid's lock during
+ * queries; instances are not thread-safe.
+ */
+public class HierarchicalPathFinder {
+    /** Default cluster edge length in lattice points. */
+    public static final int DEFAULT_CLUSTER_SIZE = 16;
+    /** Openings at least this long get an entrance at each end instead of one in the middle. */
+    private static final int LONG_OPENING = 6;
+
+    private static final int STEP = GridSearchEngine.STEP;
+    private static final float DIAGONAL = (float) (STEP * Math.sqrt(2));
+    private static final int[] DX = {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] DY = {-1, 0, 1, -1, 1, -1, 0, 1};
+    private static final int NONE = -1;
+
+    /**
+     * Entrance points of one cluster and the edges between them.
+     */
+    private static class Cluster {
+        /** Lattice cells of the entrance points. */
+        int[] cells = new int[0];
+        /** Shortest in-cluster distance between entrances i and j at [i * n + j]. */
+        float[] distances = new float[0];
+        /** Edges to entrances of neighbouring clusters: local entrance, target cell, cost. */
+        int[] exitFrom = new int[0];
+        int[] exitTo = new int[0];
+        float[] exitCost = new float[0];
+
+        int indexOf(int cell) {
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] == cell) {
+                    return i;
+                }
+            }
+            return NONE;
+        }
+    }
+
+    private final OccupancyGrid grid;
+    private final int clusterSize;
+    private final int columns;
+    private final int rows;
+    private final int clusterColumns;
+    private final int clusterRows;
+    private final int maxEntrances;
+    private final Cluster[] clusters;
+    private long version;
+
+    // In-cluster Dijkstra workspace, indexed by position within the cluster
+    private final IndexedHeap localOpen;
+    private final float[] localDistance;
+    private final int[] localParent;
+
+    // Abstract search workspace, indexed by cluster * maxEntrances + entrance
+    private final IndexedHeap abstractOpen;
+    private final float[] abstractG;
+    private final int[] abstractParent;
+    private final int[] touched;
+    private int touchedCount;
+    private int expanded;
+    private int rebuilt;
+
+    // Per-query start and goal links
+    private float[] startCost;
+    private final int[] goalClusters;
+    private final float[][] goalCost;
+    private int goalClusterCount;
+
+    public HierarchicalPathFinder(OccupancyGrid grid) {
+        this(grid, DEFAULT_CLUSTER_SIZE);
+    }
+
+    /**
+     * Builds the abstract graph of the grid's current state.
+     * @param clusterSize Cluster edge length in lattice points
+     * @throws IllegalArgumentException if clusterSize is not positive
+     */
+    public HierarchicalPathFinder(OccupancyGrid grid, int clusterSize) {
+        if (clusterSize <= 0) {
+            throw new IllegalArgumentException("cluster size must be positive: " + clusterSize);
+        }
+        this.grid = grid;
+        this.clusterSize = clusterSize;
+        this.columns = (grid.width() + STEP - 1) / STEP;
+        this.rows = (grid.height() + STEP - 1) / STEP;
+        this.clusterColumns = (columns + clusterSize - 1) / clusterSize;
+        this.clusterRows = (rows + clusterSize - 1) / clusterSize;
+        this.maxEntrances = 4 * clusterSize;
+        this.clusters = new Cluster[clusterColumns * clusterRows];
+
+        int localCells = clusterSize * clusterSize;
+        this.localOpen = new IndexedHeap(localCells);
+        this.localDistance = new float[localCells];
+        this.localParent = new int[localCells];
+
+        int abstractNodes = clusters.length * maxEntrances + 2;
+        this.abstractOpen = new IndexedHeap(abstractNodes);
+        this.abstractG = new float[abstractNodes];
+        this.abstractParent = new int[abstractNodes];
+        this.touched = new int[abstractNodes];
+        Arrays.fill(abstractG, Float.POSITIVE_INFINITY);
+
+        // The goal region spans 2 * reach + 1 lattice points per axis and so touches
+        // at most this many clusters
+        int reach = (int) Math.ceil(GridSearchEngine.GOAL_TOLERANCE / STEP);
+        int span = (2 * reach + 1) / clusterSize + 2;
+        this.goalClusters = new int[span * span];
+        this.goalCost = new float[span * span][];
+        for (int i = 0; i < goalCost.length; i++) {
+            goalCost[i] = new float[maxEntrances];
+        }
+
+        synchronized (grid) {
+            version = grid.version();
+            for (int c = 0; c < clusters.length; c++) {
+                rebuild(c);
+            }
+        }
+    }
+
+    public OccupancyGrid grid() {
+        return grid;
+    }
+
+    /**
+     * Number of abstract nodes taken from the open set by the last query.
+     */
+    public int expanded() {
+        return expanded;
+    }
+
+    /**
+     * Number of clusters rebuilt so far because the grid changed.
+     */
+    public int rebuiltClusters() {
+        return rebuilt;
+    }
+
+    /**
+     * Finds a route from start to within {@link GridSearchEngine#GOAL_TOLERANCE} of
+     * the destination. The start is first moved to the nearest free lattice point.
+     * @return Consecutive lattice points (preceded by the start if it is off the
+     *         lattice), or an empty list if the destination is unreachable
+     */
+    public List<Point> findPath(Point start, Point destination) {
+        update();
+        expanded = 0;
+        int startCell = snap(start);
+        if (startCell == NONE) {
+            return Collections.emptyList();
+        }
+        int[] goals = goalCells(destination);
+        if (goals.length == 0) {
+            return Collections.emptyList();
+        }
+
+        int[] route = searchAbstract(startCell, goals, destination);
+        if (route == null) {
+            return Collections.emptyList();
+        }
+
+        List<Point> path = new ArrayList<>();
+        if (start.x != column(startCell) * STEP || start.y != row(startCell) * STEP) {
+            path.add(start);
+        }
+        path.add(point(startCell));
+        int current = startCell;
+        for (int i = 1; i < route.length; i++) {
+            int node = route[i];
+            int cluster = clusterOf(current);
+            if (node == goalNode()) {
+                refine(cluster, goalsIn(goals, cluster), current, path);
+            } else {
+                int cell = clusters[node / maxEntrances].cells[node % maxEntrances];
+                if (clusterOf(cell) == cluster) {
+                    refine(cluster, new int[] {cell}, current, path);
+                } else {
+                    path.add(point(cell));
+                }
+                current = cell;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Brings the abstract graph up to date with the grid.
+     */
+    private void update() {
+        long current = grid.version();
+        if (current == version) {
+            return;
+        }
+        List<OccupancyGrid.Change> changes = grid.changesSince(version);
+        if (changes == null) {
+            for (int c = 0; c < clusters.length; c++) {
+                rebuild(c);
+            }
+            rebuilt += clusters.length;
+        } else {
+            boolean[] dirty = new boolean[clusters.length];
+            for (OccupancyGrid.Change change : changes) {
+                // Clusters holding a changed lattice point, plus their neighbours, whose
+                // entrances on the shared border may have changed too
+                int fromX = Math.max(0, ((change.minX + STEP - 1) / STEP) / clusterSize - 1);
+                int fromY = Math.max(0, ((change.minY + STEP - 1) / STEP) / clusterSize - 1);
+                int toX = Math.min(clusterColumns - 1, ((change.maxX - 1) / STEP) / clusterSize + 1);
+                int toY = Math.min(clusterRows - 1, ((change.maxY - 1) / STEP) / clusterSize + 1);
+                for (int cy = fromY; cy <= toY; cy++) {
+                    for (int cx = fromX; cx <= toX; cx++) {
+                        dirty[cy * clusterColumns + cx] = true;
+                    }
+                }
+            }
+            for (int c = 0; c < clusters.length; c++) {
+                if (dirty[c]) {
+                    rebuild(c);
+                    rebuilt++;
+                }
+            }
+        }
+        version = current;
+    }
+
+    /**
+     * Recomputes a cluster's entrances from the lattice points on both sides of its
+     * borders, then the distances between them. Entrances are derived symmetrically,
+     * so the neighbour on the other side finds the same pairs.
+     */
+    private void rebuild(int c) {
+        int cx0 = (c % clusterColumns) * clusterSize;
+        int cy0 = (c / clusterColumns) * clusterSize;
+        int cx1 = Math.min(columns, cx0 + clusterSize);
+        int cy1 = Math.min(rows, cy0 + clusterSize);
+        Links links = new Links();
+
+        // Sides: positions run along the border, offset points across it
+        borderLinks(cx0, cy0, 0, 1, cy1 - cy0, -1, 0, links);
+        borderLinks(cx1 - 1, cy0, 0, 1, cy1 - cy0, 1, 0, links);
+        borderLinks(cx0, cy0, 1, 0, cx1 - cx0, 0, -1, links);
+        borderLinks(cx0, cy1 - 1, 1, 0, cx1 - cx0, 0, 1, links);
+        // Corners, crossable diagonally only when both points beside the move are blocked
+        cornerLink(cx0, cy0, -1, -1, links);
+        cornerLink(cx1 - 1, cy0, 1, -1, links);
+        cornerLink(cx0, cy1 - 1, -1, 1, links);
+        cornerLink(cx1 - 1, cy1 - 1, 1, 1, links);
+
+        Cluster cluster = new Cluster();
+        cluster.cells = Arrays.copyOf(links.entrances, links.entranceCount);
+        cluster.exitFrom = Arrays.copyOf(links.from, links.count);
+        cluster.exitTo = Arrays.copyOf(links.to, links.count);
+        cluster.exitCost = Arrays.copyOf(links.cost, links.count);
+        int n = cluster.cells.length;
+        cluster.distances = new float[n * n];
+        clusters[c] = cluster;
+        for (int i = 0; i < n; i++) {
+            searchCluster(c, new int[] {cluster.cells[i]}, NONE);
+            for (int j = 0; j < n; j++) {
+                cluster.distances[i * n + j] = localDistance[local(c, cluster.cells[j])];
+            }
+        }
+    }
+
+    /**
+     * Collects a cluster's entrances and links while it is rebuilt.
+     */
+    private class Links {
+        int[] entrances = new int[maxEntrances];
+        int entranceCount;
+        int[] from = new int[2 * maxEntrances + 4];
+        int[] to = new int[2 * maxEntrances + 4];
+        float[] cost = new float[2 * maxEntrances + 4];
+        int count;
+
+        void add(int inside, int outside, float linkCost) {
+            int entrance = NONE;
+            for (int i = 0; i < entranceCount; i++) {
+                if (entrances[i] == inside) {
+                    entrance = i;
+                }
+            }
+            if (entrance == NONE) {
+                entrance = entranceCount;
+                entrances[entranceCount++] = inside;
+            }
+            from[count] = entrance;
+            to[count] = outside;
+            cost[count++] = linkCost;
+        }
+    }
+
+    /**
+     * Finds the entrances on one side of a cluster. Position i is the lattice point
+     * (x0 + i * stepX, y0 + i * stepY) inside the cluster, facing the point offset by
+     * (dx, dy) outside it.
+     */
+    private void borderLinks(int x0, int y0, int stepX, int stepY, int length, int dx, int dy, Links links) {
+        int runStart = NONE;
+        for (int i = 0; i <= length; i++) {
+            int x = x0 + i * stepX;
+            int y = y0 + i * stepY;
+            boolean open = i < length && !isBlocked(x, y) && !isBlocked(x + dx, y + dy);
+            if (open && runStart == NONE) {
+                runStart = i;
+            } else if (!open && runStart != NONE) {
+                int runEnd = i - 1;
+                if (runEnd - runStart + 1 < LONG_OPENING) {
+                    int middle = (runStart + runEnd) / 2;
+                    link(x0 + middle * stepX, y0 + middle * stepY, dx, dy, links);
+                } else {
+                    link(x0 + runStart * stepX, y0 + runStart * stepY, dx, dy, links);
+                    link(x0 + runEnd * stepX, y0 + runEnd * stepY, dx, dy, links);
+                }
+                runStart = NONE;
+            }
+
+            // A diagonal squeeze through the border that no opening covers
+            if (i < length && !isBlocked(x, y) && isBlocked(x + dx, y + dy)) {
+                for (int side = -1; side <= 1; side += 2) {
+                    int j = i + side;
+                    int jx = x0 + j * stepX;
+                    int jy = y0 + j * stepY;
+                    if (j >= 0 && j < length && isBlocked(jx, jy) && !isBlocked(jx + dx, jy + dy)) {
+                        links.add(cell(x, y), cell(jx + dx, jy + dy), DIAGONAL);
+                    }
+                }
+            }
+        }
+    }
+
+    private void link(int x, int y, int dx, int dy, Links links) {
+        links.add(cell(x, y), cell(x + dx, y + dy), STEP);
+    }
+
+    private void cornerLink(int x, int y, int dx, int dy, Links links) {
+        if (!isBlocked(x, y) && !isBlocked(x + dx, y + dy) && isBlocked(x + dx, y) && isBlocked(x, y + dy)) {
+            links.add(cell(x, y), cell(x + dx, y + dy), DIAGONAL);
+        }
+    }
+
+    /**
+     * A* over the abstract graph from the start cell to any goal cell.
+     * @return Abstract nodes from the start node to the goal node, or null
+     */
+    private int[] searchAbstract(int startCell, int[] goals, Point destination) {
+        for (int i = 0; i < touchedCount; i++) {
+            abstractG[touched[i]] = Float.POSITIVE_INFINITY;
+        }
+        touchedCount = 0;
+        abstractOpen.clear();
+
+        // Link the start to its cluster's entrances, and every goal cluster's entrances to the goal
+        int startCluster = clusterOf(startCell);
+        searchCluster(startCluster, new int[] {startCell}, NONE);
+        Cluster home = clusters[startCluster];
+        startCost = new float[home.cells.length];
+        for (int i = 0; i < startCost.length; i++) {
+            startCost[i] = localDistance[local(startCluster, home.cells[i])];
+        }
+        float direct = Float.POSITIVE_INFINITY;
+        for (int goal : goalsIn(goals, startCluster)) {
+            direct = Math.min(direct, localDistance[local(startCluster, goal)]);
+        }
+        goalClusterCount = 0;
+        for (int goal : goals) {
+            int cluster = clusterOf(goal);
+            if (goalIndex(cluster) == NONE) {
+                searchCluster(cluster, goalsIn(goals, cluster), NONE);
+                Cluster target = clusters[cluster];
+                for (int i = 0; i < target.cells.length; i++) {
+                    goalCost[goalClusterCount][i] = localDistance[local(cluster, target.cells[i])];
+                }
+                goalClusters[goalClusterCount++] = cluster;
+            }
+        }
+
+        int startNode = goalNode() - 1;
+        relax(startNode, NONE, 0, destination);
+        while (!abstractOpen.isEmpty()) {
+            int node = abstractOpen.pop();
+            expanded++;
+            if (node == goalNode()) {
+                int length = 0;
+                for (int n = node; n != NONE; n = abstractParent[n]) {
+                    length++;
+                }
+                int[] route = new int[length];
+                for (int n = node; n != NONE; n = abstractParent[n]) {
+                    route[--length] = n;
+                }
+                return route;
+            }
+
+            float g = abstractG[node];
+            if (node == startNode) {
+                for (int i = 0; i < startCost.length; i++) {
+                    relax(startCluster * maxEntrances + i, node, g + startCost[i], destination);
+                }
+                relax(goalNode(), node, g + direct, destination);
+                continue;
+            }
+
+            int c = node / maxEntrances;
+            int i = node % maxEntrances;
+            Cluster cluster = clusters[c];
+            int n = cluster.cells.length;
+            for (int j = 0; j < n; j++) {
+                if (j != i) {
+                    relax(c * maxEntrances + j, node, g + cluster.distances[i * n + j], destination);
+                }
+            }
+            for (int e = 0; e < cluster.exitFrom.length; e++) {
+                if (cluster.exitFrom[e] == i) {
+                    int target = clusterOf(cluster.exitTo[e]);
+                    int j = clusters[target].indexOf(cluster.exitTo[e]);
+                    if (j != NONE) {
+                        relax(target * maxEntrances + j, node, g + cluster.exitCost[e], destination);
+                    }
+                }
+            }
+            int goalIndex = goalIndex(c);
+            if (goalIndex != NONE) {
+                relax(goalNode(), node, g + goalCost[goalIndex][i], destination);
+            }
+        }
+        return null;
+    }
+
+    private void relax(int node, int from, float g, Point destination) {
+        if (g < abstractG[node]) {
+            if (abstractG[node] == Float.POSITIVE_INFINITY) {
+                touched[touchedCount++] = node;
+            }
+            abstractG[node] = g;
+            abstractParent[node] = from;
+            abstractOpen.update(node, g + heuristic(node, destination));
+        }
+    }
+
+    /**
+     * Straight-line distance to the edge of the goal region; never overestimates.
+     */
+    private float heuristic(int node, Point destination) {
+        if (node >= goalNode() - 1) {
+            return 0;
+        }
+        int cell = clusters[node / maxEntrances].cells[node % maxEntrances];
+        double distance = VectorKernels.pointDistance(column(cell) * STEP, row(cell) * STEP, destination.x, destination.y);
+        return (float) Math.max(0, distance - GridSearchEngine.GOAL_TOLERANCE);
+    }
+
+    private int goalNode() {
+        return clusters.length * maxEntrances + 1;
+    }
+
+    private int goalIndex(int cluster) {
+        for (int i = 0; i < goalClusterCount; i++) {
+            if (goalClusters[i] == cluster) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Appends the lattice points of the shortest in-cluster route from a cell to
+     * the nearest of the targets, excluding the cell itself.
+     */
+    private void refine(int cluster, int[] targets, int from, List<Point> path) {
+        searchCluster(cluster, targets, local(cluster, from));
+        int x0 = (cluster % clusterColumns) * clusterSize;
+        int y0 = (cluster / clusterColumns) * clusterSize;
+        int width = Math.min(columns, x0 + clusterSize) - x0;
+        for (int i = localParent[local(cluster, from)]; i != NONE; i = localParent[i]) {
+            path.add(new Point((x0 + i % width) * STEP, (y0 + i / width) * STEP));
+        }
+    }
+
+    /**
+     * Dijkstra within one cluster from the source cells. Afterwards localDistance
+     * holds every point's distance to the nearest source and localParent the next
+     * point towards it.
+     * @param stop Local index at which the search may end, or -1 to search the whole cluster
+     */
+    private void searchCluster(int cluster, int[] sources, int stop) {
+        int x0 = (cluster % clusterColumns) * clusterSize;
+        int y0 = (cluster / clusterColumns) * clusterSize;
+        int width = Math.min(columns, x0 + clusterSize) - x0;
+        int height = Math.min(rows, y0 + clusterSize) - y0;
+        Arrays.fill(localDistance, 0, width * height, Float.POSITIVE_INFINITY);
+        localOpen.clear();
+        for (int source : sources) {
+            int i = local(cluster, source);
+            localDistance[i] = 0;
+            localParent[i] = NONE;
+            localOpen.update(i, 0);
+        }
+
+        while (!localOpen.isEmpty()) {
+            int i = localOpen.pop();
+            if (i == stop) {
+                return;
+            }
+            int lx = i % width;
+            int ly = i / width;
+            for (int dir = 0; dir < DX.length; dir++) {
+                int nx = lx + DX[dir];
+                int ny = ly + DY[dir];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height || isBlocked(x0 + nx, y0 + ny)) {
+                    continue;
+                }
+                int next = ny * width + nx;
+                float distance = localDistance[i] + (DX[dir] != 0 && DY[dir] != 0 ? DIAGONAL : STEP);
+                if (distance < localDistance[next]) {
+                    localDistance[next] = distance;
+                    localParent[next] = i;
+                    localOpen.update(next, distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * The free lattice point nearest to a map point, among the four around it.
+     */
+    private int snap(Point p) {
+        int best = NONE;
+        double bestDistance = Double.MAX_VALUE;
+        for (int x = p.x / STEP; x <= (p.x + STEP - 1) / STEP; x++) {
+            for (int y = p.y / STEP; y <= (p.y + STEP - 1) / STEP; y++) {
+                double distance = VectorKernels.pointDistance(x * STEP, y * STEP, p.x, p.y);
+                if (!isBlocked(x, y) && distance < bestDistance) {
+                    best = cell(x, y);
+                    bestDistance = distance;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Free lattice cells within the goal tolerance of the destination.
+     */
+    private int[] goalCells(Point destination) {
+        int reach = (int) Math.ceil(GridSearchEngine.GOAL_TOLERANCE / STEP);
+        int[] cells = new int[(2 * reach + 1) * (2 * reach + 1)];
+        int count = 0;
+        for (int y = destination.y / STEP - reach; y <= destination.y / STEP + reach; y++) {
+            for (int x = destination.x / STEP - reach; x <= destination.x / STEP + reach; x++) {
+                if (!isBlocked(x, y) && VectorKernels.pointDistance(x * STEP, y * STEP, destination.x, destination.y)
+                        < GridSearchEngine.GOAL_TOLERANCE) {
+                    cells[count++] = cell(x, y);
+                }
+            }
+        }
+        return Arrays.copyOf(cells, count);
+    }
+
+    private int[] goalsIn(int[] goals, int cluster) {
+        int count = 0;
+        int[] inside = new int[goals.length];
+        for (int goal : goals) {
+            if (clusterOf(goal) == cluster) {
+                inside[count++] = goal;
+            }
+        }
+        return Arrays.copyOf(inside, count);
+    }
+
+    /**
+     * True for lattice points off the map or inside an unsafe zone.
+     */
+    private boolean isBlocked(int x, int y) {
+        return x < 0 || x >= columns || y < 0 || y >= rows || grid.isBlocked(x * STEP, y * STEP);
+    }
+
+    private int cell(int x, int y) {
+        return y * columns + x;
+    }
+
+    private int column(int cell) {
+        return cell % columns;
+    }
+
+    private int row(int cell) {
+        return cell / columns;
+    }
+
+    private Point point(int cell) {
+        return new Point(column(cell) * STEP, row(cell) * STEP);
+    }
+
+    private int clusterOf(int cell) {
+        return (row(cell) / clusterSize) * clusterColumns + column(cell) / clusterSize;
+    }
+
+    /**
+     * Index of a lattice cell within its cluster's workspace.
+     */
+    private int local(int cluster, int cell) {
+        int x0 = (cluster % clusterColumns) * clusterSize;
+        int y0 = (cluster / clusterColumns) * clusterSize;
+        int width = Math.min(columns, x0 + clusterSize) - x0;
+        return (row(cell) - y0) * width + column(cell) - x0;
+    }
+}
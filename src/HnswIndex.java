@@ -0,0 +1,647 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical Navigable Small World (HNSW) graph for approximate nearest-neighbour
+ * search over the rows of a {@link FeatureMatrix}. Similarity is the same weighted
+ * cosine score used by {@link FeatureMatrix#topK}. Recall and latency are traded off
+ * through M (links per node), efConstruction (build-time beam width) and efSearch
+ * (query-time beam width).
+ */
+public class HnswIndex {
+    private static final int MAGIC = 0x54524848; // "TRHH"
+    private static final int FORMAT_VERSION = 2;
+
+    private final FeatureMatrix matrix;
+    // Unweighted block-normalized copy of every row, used as the query side when linking
+    private final float[] vectors;
+    private final int m;
+    private final int maxLinks0;
+    private final int efConstruction;
+    private int efSearch;
+
+    private final int[] levels;
+    // links[node][level] holds up to maxLinks(level) neighbour ids; linkCounts tracks the fill
+    private final int[][][] links;
+    private final int[][] linkCounts;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    // Rows removed or inserted by updates since the graph was last built from scratch
+    private int replacedRows;
+
+    private final ThreadLocal<int[]> visitedMarks;
+    private final ThreadLocal<int[]> visitedEpoch = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * Summary of an approximate-versus-exact comparison.
+     */
+    public static class RecallReport {
+        public final int queries;
+        public final int k;
+        public final double recall;
+        public final double averageExactMicros;
+        public final double averageApproximateMicros;
+
+        RecallReport(int queries, int k, double recall, double averageExactMicros, double averageApproximateMicros) {
+            this.queries = queries;
+            this.k = k;
+            this.recall = recall;
+            this.averageExactMicros = averageExactMicros;
+            this.averageApproximateMicros = averageApproximateMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("recall@%d over %d queries: %.4f | brute force %.1f us | HNSW %.1f us",
+                    k, queries, recall, averageExactMicros, averageApproximateMicros);
+        }
+    }
+
+    private HnswIndex(FeatureMatrix matrix, int m, int efConstruction, int efSearch) {
+        if (m < 2 || efConstruction < 1 || efSearch < 1) {
+            throw new IllegalArgumentException("M must be at least 2 and ef values positive");
+        }
+        this.matrix = matrix;
+        this.m = m;
+        this.maxLinks0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+
+        int size = matrix.size();
+        this.vectors = new float[size * FeatureMatrix.DIMENSIONS];
+        for (int row = 0; row < size; row++) {
+            matrix.queryVector(row, vectors, row * FeatureMatrix.DIMENSIONS);
+        }
+        this.levels = new int[size];
+        this.links = new int[size][][];
+        this.linkCounts = new int[size][];
+        this.visitedMarks = ThreadLocal.withInitial(() -> new int[size]);
+    }
+
+    /**
+     * Builds an index over every row of the matrix.
+     * @param matrix         Catalog feature matrix
+     * @param m              Links per node on upper layers (twice as many on layer 0)
+     * @param efConstruction Beam width while inserting
+     * @param efSearch       Default beam width while searching
+     * @return               Populated index
+     */
+    public static HnswIndex build(FeatureMatrix matrix, int m, int efConstruction, int efSearch) {
+        HnswIndex index = new HnswIndex(matrix, m, efConstruction, efSearch);
+        Random random = new Random(42);
+        double levelFactor = 1 / Math.log(m);
+        for (int node = 0; node < matrix.size(); node++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+            index.insert(node, level);
+        }
+        return index;
+    }
+
+    /**
+     * Carries the graph over to an updated catalog matrix instead of rebuilding it.
+     * Rows that are unchanged keep their links. A node that linked to a removed row
+     * picks its links anew among its remaining neighbours and the removed row's
+     * neighbours. New or changed rows are then inserted like during a build.
+     * @param updated     Matrix of the new catalog snapshot
+     * @param previousRow For every row of the updated matrix, the row of this
+     *                    index's matrix holding the same features, or -1 if the
+     *                    row is new or changed
+     * @return            Index over the updated matrix; this index is left untouched
+     */
+    public HnswIndex update(FeatureMatrix updated, int[] previousRow) {
+        HnswIndex index = new HnswIndex(updated, m, efConstruction, efSearch);
+        int[] newRow = new int[size()];
+        Arrays.fill(newRow, -1);
+        for (int row = 0; row < previousRow.length; row++) {
+            if (previousRow[row] >= 0) {
+                newRow[previousRow[row]] = row;
+            }
+        }
+
+        int[] candidates = new int[maxLinks0 * (maxLinks0 + 1)];
+        for (int old = 0; old < size(); old++) {
+            int node = newRow[old];
+            if (node < 0 || links[old] == null) {
+                continue;
+            }
+            index.levels[node] = levels[old];
+            index.links[node] = new int[levels[old] + 1][];
+            index.linkCounts[node] = new int[levels[old] + 1];
+            for (int l = 0; l <= levels[old]; l++) {
+                index.links[node][l] = new int[maxLinks(l)];
+                int count = 0;
+                boolean damaged = false;
+                for (int i = 0; i < linkCounts[old][l]; i++) {
+                    int neighbor = newRow[links[old][l][i]];
+                    if (neighbor >= 0) {
+                        candidates[count++] = neighbor;
+                    } else {
+                        damaged = true;
+                        int removed = links[old][l][i];
+                        for (int j = 0; j < linkCounts[removed][l]; j++) {
+                            int candidate = newRow[links[removed][l][j]];
+                            if (candidate >= 0 && candidate != node) {
+                                candidates[count++] = candidate;
+                            }
+                        }
+                    }
+                }
+                if (damaged) {
+                    index.relink(node, l, candidates, count);
+                } else {
+                    System.arraycopy(candidates, 0, index.links[node][l], 0, count);
+                    index.linkCounts[node][l] = count;
+                }
+            }
+            if (index.levels[node] > index.maxLevel) {
+                index.maxLevel = index.levels[node];
+                index.entryPoint = node;
+            }
+        }
+        if (entryPoint >= 0 && newRow[entryPoint] >= 0) {
+            index.entryPoint = newRow[entryPoint];
+        }
+
+        Random random = new Random(42 + updated.size());
+        double levelFactor = 1 / Math.log(m);
+        index.replacedRows = replacedRows;
+        for (int node = 0; node < updated.size(); node++) {
+            if (index.links[node] == null) {
+                index.insert(node, (int) (-Math.log(1 - random.nextDouble()) * levelFactor));
+                index.replacedRows++;
+            }
+        }
+        for (int old = 0; old < size(); old++) {
+            if (newRow[old] < 0) {
+                index.replacedRows++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Rows removed or inserted by {@link #update} since the graph was last built
+     * from scratch. Recall slowly degrades as this grows.
+     */
+    public int replacedRows() {
+        return replacedRows;
+    }
+
+    /**
+     * Number of indexed rows.
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    /**
+     * Sets the beam width used by {@link #search}; higher values raise recall and latency.
+     */
+    public void setEfSearch(int efSearch) {
+        if (efSearch < 1) {
+            throw new IllegalArgumentException("efSearch must be positive");
+        }
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * Finds approximately the k rows most similar to the query.
+     * @param query Query encoded with {@link FeatureMatrix#encodeQuery}
+     * @param k     Number of results
+     * @return      Selector holding the results (call {@link TopKSelector#sort()} to rank them)
+     */
+    public TopKSelector search(float[] query, int k) {
+        TopKSelector result = new TopKSelector(k);
+        if (entryPoint < 0) {
+            return result;
+        }
+        int current = entryPoint;
+        for (int level = maxLevel; level > 0; level--) {
+            current = greedyClosest(query, 0, current, level);
+        }
+        TopKSelector beam = searchLayer(query, 0, new int[] {current}, 1, Math.max(efSearch, k), 0);
+        for (int i = 0; i < beam.size(); i++) {
+            result.offer(beam.id(i), beam.score(i));
+        }
+        return result;
+    }
+
+    /**
+     * Compares approximate results with brute-force results for sampled catalog rows.
+     * A query row is its own nearest neighbour and the graph nearly always finds
+     * it, so it is left out of both result sets and the next k rows are compared.
+     * @param queries Number of sampled rows used as queries
+     * @param k       Result size compared
+     * @param seed    Seed for sampling
+     * @return        Recall and average latency of both methods
+     */
+    public RecallReport measureRecall(int queries, int k, long seed) {
+        Random random = new Random(seed);
+        int found = 0;
+        int expected = 0;
+        long exactNanos = 0;
+        long approximateNanos = 0;
+        float[] query = new float[FeatureMatrix.DIMENSIONS];
+
+        for (int q = 0; q < queries && size() > 0; q++) {
+            int row = random.nextInt(size());
+            System.arraycopy(vectors, row * FeatureMatrix.DIMENSIONS, query, 0, query.length);
+
+            long start = System.nanoTime();
+            TopKSelector exact = matrix.topK(query, k + 1);
+            exactNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            TopKSelector approximate = search(query, k + 1);
+            approximateNanos += System.nanoTime() - start;
+
+            int[] exactIds = othersThan(row, exact, k);
+            int[] approximateIds = othersThan(row, approximate, k);
+            expected += exactIds.length;
+            for (int id : exactIds) {
+                for (int other : approximateIds) {
+                    if (id == other) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        int samples = size() > 0 ? queries : 0;
+        return new RecallReport(samples, k, expected == 0 ? 1 : (double) found / expected,
+                samples == 0 ? 0 : exactNanos / 1000.0 / samples,
+                samples == 0 ? 0 : approximateNanos / 1000.0 / samples);
+    }
+
+    /**
+     * The ids of the best k results other than the given row.
+     */
+    private static int[] othersThan(int row, TopKSelector results, int k) {
+        results.sort();
+        int[] ids = new int[Math.min(k, results.size())];
+        int count = 0;
+        for (int i = 0; i < results.size() && count < ids.length; i++) {
+            if (results.id(i) != row) {
+                ids[count++] = results.id(i);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Inserts a row into the graph at the given top level.
+     */
+    private void insert(int node, int level) {
+        levels[node] = level;
+        links[node] = new int[level + 1][];
+        linkCounts[node] = new int[level + 1];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[maxLinks(l)];
+        }
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int offset = node * FeatureMatrix.DIMENSIONS;
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(vectors, offset, current, l);
+        }
+
+        int[] entryPoints = {current};
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            TopKSelector candidates = searchLayer(vectors, offset, entryPoints, entryPoints.length, efConstruction, l);
+            candidates.sort();
+            int[] selected = selectNeighbors(candidates, m);
+            for (int neighbor : selected) {
+                link(node, neighbor, l);
+                link(neighbor, node, l);
+            }
+            entryPoints = new int[candidates.size()];
+            for (int i = 0; i < entryPoints.length; i++) {
+                entryPoints[i] = candidates.id(i);
+            }
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Replaces a node's links on one layer with the most similar diverse candidates.
+     * @param candidates Candidate ids; may hold duplicates
+     */
+    private void relink(int node, int level, int[] candidates, int count) {
+        TopKSelector ranked = new TopKSelector(Math.max(1, count));
+        for (int i = 0; i < count; i++) {
+            ranked.offer(candidates[i], similarity(node, candidates[i]));
+        }
+        ranked.sort();
+        TopKSelector unique = new TopKSelector(Math.max(1, ranked.size()));
+        for (int i = 0; i < ranked.size(); i++) {
+            if (i == 0 || ranked.id(i) != ranked.id(i - 1)) {
+                unique.offer(ranked.id(i), ranked.score(i));
+            }
+        }
+        unique.sort();
+        int[] selected = selectNeighbors(unique, maxLinks(level));
+        System.arraycopy(selected, 0, links[node][level], 0, selected.length);
+        linkCounts[node][level] = selected.length;
+    }
+
+    /**
+     * Picks diverse neighbours from candidates sorted best first: a candidate is kept
+     * only if it is more similar to the new node than to any neighbour already kept.
+     * Remaining slots are filled with the best pruned candidates.
+     */
+    private int[] selectNeighbors(TopKSelector sortedCandidates, int count) {
+        int[] selected = new int[Math.min(count, sortedCandidates.size())];
+        boolean[] taken = new boolean[sortedCandidates.size()];
+        int size = 0;
+        for (int i = 0; i < sortedCandidates.size() && size < selected.length; i++) {
+            int candidate = sortedCandidates.id(i);
+            float similarity = sortedCandidates.score(i);
+            boolean diverse = true;
+            for (int j = 0; j < size && diverse; j++) {
+                diverse = similarity(candidate, selected[j]) < similarity;
+            }
+            if (diverse) {
+                selected[size++] = candidate;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < sortedCandidates.size() && size < selected.length; i++) {
+            if (!taken[i]) {
+                selected[size++] = sortedCandidates.id(i);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Adds a directed link, replacing the least similar neighbour when the list is
+     * full. Existing links are kept as they are.
+     */
+    private void link(int from, int to, int level) {
+        int[] neighbors = links[from][level];
+        int count = linkCounts[from][level];
+        for (int i = 0; i < count; i++) {
+            if (neighbors[i] == to) {
+                return;
+            }
+        }
+        if (count < neighbors.length) {
+            neighbors[count] = to;
+            linkCounts[from][level] = count + 1;
+            return;
+        }
+        int weakest = -1;
+        float weakestSimilarity = similarity(from, to);
+        for (int i = 0; i < count; i++) {
+            float s = similarity(from, neighbors[i]);
+            if (s < weakestSimilarity) {
+                weakestSimilarity = s;
+                weakest = i;
+            }
+        }
+        if (weakest >= 0) {
+            neighbors[weakest] = to;
+        }
+    }
+
+    /**
+     * Walks greedily towards the query on one layer and returns the closest node found.
+     */
+    private int greedyClosest(float[] query, int queryOffset, int start, int level) {
+        int current = start;
+        float best = score(query, queryOffset, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] neighbors = links[current][level];
+            int count = linkCounts[current][level];
+            for (int i = 0; i < count; i++) {
+                float s = score(query, queryOffset, neighbors[i]);
+                if (s > best) {
+                    best = s;
+                    current = neighbors[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search on one layer; returns the ef best nodes found.
+     */
+    private TopKSelector searchLayer(float[] query, int queryOffset, int[] entryPoints, int entryCount,
+                                     int ef, int level) {
+        int[] marks = visitedMarks.get();
+        int[] epochHolder = visitedEpoch.get();
+        int epoch = ++epochHolder[0];
+        if (epoch == Integer.MAX_VALUE) {
+            Arrays.fill(marks, 0);
+            epochHolder[0] = epoch = 1;
+        }
+
+        TopKSelector results = new TopKSelector(ef);
+        CandidateHeap candidates = new CandidateHeap(ef * 2);
+        for (int i = 0; i < entryCount; i++) {
+            int node = entryPoints[i];
+            marks[node] = epoch;
+            float s = score(query, queryOffset, node);
+            results.offer(node, s);
+            candidates.push(node, s);
+        }
+
+        while (candidates.size() > 0) {
+            float bestCandidate = candidates.peekScore();
+            if (results.size() == ef && bestCandidate < results.threshold()) {
+                break;
+            }
+            int node = candidates.pop();
+            int[] neighbors = links[node][level];
+            int count = linkCounts[node][level];
+            for (int i = 0; i < count; i++) {
+                int neighbor = neighbors[i];
+                if (marks[neighbor] == epoch) {
+                    continue;
+                }
+                marks[neighbor] = epoch;
+                float s = score(query, queryOffset, neighbor);
+                if (results.size() < ef || s > results.threshold()) {
+                    results.offer(neighbor, s);
+                    candidates.push(neighbor, s);
+                }
+            }
+        }
+        return results;
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? maxLinks0 : m;
+    }
+
+    private float score(float[] query, int queryOffset, int row) {
+        return matrix.score(query, queryOffset, row);
+    }
+
+    private float similarity(int a, int b) {
+        return matrix.score(vectors, a * FeatureMatrix.DIMENSIONS, b);
+    }
+
+    /**
+     * Writes the graph structure to disk. Feature vectors are not stored; they are
+     * taken from the matrix passed to {@link #load}.
+     * @param file    Destination file
+     * @param version Catalog version the graph was built for
+     */
+    public void save(File file, long version) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(version);
+            out.writeInt(size());
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            out.writeInt(replacedRows);
+            for (int node = 0; node < size(); node++) {
+                out.writeInt(levels[node]);
+                for (int level = 0; level <= levels[node]; level++) {
+                    out.writeInt(linkCounts[node][level]);
+                    for (int i = 0; i < linkCounts[node][level]; i++) {
+                        out.writeInt(links[node][level][i]);
+                    }
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads a graph saved by {@link #save} for the given matrix.
+     * @param file    Saved graph
+     * @param matrix  Catalog matrix the graph indexes
+     * @param version Expected catalog version
+     * @throws IOException if the file is unreadable or was built for another catalog
+     */
+    public static HnswIndex load(File file, FeatureMatrix matrix, long version) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported HNSW index format");
+            }
+            if (buffer.getLong() != version || buffer.getInt() != matrix.size()) {
+                throw new IOException("HNSW index was built for another catalog version");
+            }
+            HnswIndex index = new HnswIndex(matrix, buffer.getInt(), buffer.getInt(), buffer.getInt());
+            index.entryPoint = buffer.getInt();
+            index.maxLevel = buffer.getInt();
+            index.replacedRows = buffer.getInt();
+            for (int node = 0; node < index.size(); node++) {
+                int level = buffer.getInt();
+                index.levels[node] = level;
+                index.links[node] = new int[level + 1][];
+                index.linkCounts[node] = new int[level + 1];
+                for (int l = 0; l <= level; l++) {
+                    int count = buffer.getInt();
+                    index.links[node][l] = new int[index.maxLinks(l)];
+                    index.linkCounts[node][l] = count;
+                    readInts(buffer, index.links[node][l], count);
+                }
+            }
+            return index;
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt HNSW index", e);
+        }
+    }
+
+    private static void readInts(ByteBuffer buffer, int[] dst, int count) {
+        buffer.asIntBuffer().get(dst, 0, count);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+    }
+
+    /**
+     * Growable binary max-heap of candidate ids ordered by score.
+     */
+    private static class CandidateHeap {
+        private int[] ids;
+        private float[] scores;
+        private int size;
+
+        CandidateHeap(int capacity) {
+            ids = new int[Math.max(4, capacity)];
+            scores = new float[ids.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float peekScore() {
+            return scores[0];
+        }
+
+        void push(int id, float score) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (scores[parent] >= score) {
+                    break;
+                }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = ids[0];
+            int lastId = ids[--size];
+            float lastScore = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] > scores[child]) {
+                    child++;
+                }
+                if (scores[child] <= lastScore) {
+                    break;
+                }
+                ids[i] = ids[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            ids[i] = lastId;
+            scores[i] = lastScore;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes images at reduced resolution so feature extraction and thumbnails never
+ * materialize a full-size bitmap. Feature images are decoded headlessly with ImageIO
+ * source subsampling; display images use JavaFX's requested-size decoding. All
+ * feature families are extracted from one decode, whose longer side is at most
+ * {@code -Ddecode.maxDimension} pixels (512 by default).
+ */
+public class ImageLoader {
+
+    private static final int DEFAULT_MAX_DIMENSION = 512;
+    private static final int MAX_DIMENSION = Math.max(1,
+            Integer.getInteger("decode.maxDimension", DEFAULT_MAX_DIMENSION));
+
+    /**
+     * Largest dimension an image is decoded at for feature extraction. Stored in
+     * the feature index so features extracted at different resolutions are never
+     * mixed.
+     */
+    public static int featureDecodeSize() {
+        return MAX_DIMENSION;
+    }
+
+    /**
+     * Extracts image features from a file decoded at {@link #featureDecodeSize()}.
+     * Formats ImageIO cannot read fall back to a JavaFX requested-size decode.
+     */
+    public static AdvancedImageComparator.ImageFeatures extractFeatures(File file) throws IOException {
+        int size = featureDecodeSize();
+        BufferedImage image = readSubsampled(file, size);
+        if (image != null) {
+            return AdvancedImageComparator.extractFeatures(image);
+        }
+
+        Image fallback = loadScaled(file, size, size);
+        if (fallback.isError()) {
+            throw new IOException("could not decode image", fallback.getException());
+        }
+        return AdvancedImageComparator.extractFeatures(fallback);
+    }
+
+    /**
+     * Reads an image with ImageIO, skipping rows and columns at decode time so the
+     * result is at most about maxDimension pixels on its longer side.
+     * @return The subsampled image, or null if no ImageIO reader supports the file
+     */
+    public static BufferedImage readSubsampled(File file, int maxDimension) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                throw new IOException("cannot open " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int factor = Math.max(1, (longest + maxDimension - 1) / maxDimension);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Loads an image for display, decoded directly at (at most) the requested size.
+     */
+    public static Image loadScaled(File file, double width, double height) {
+        return new Image(file.toURI().toString(), width, height, true, true);
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of int items in [0, capacity) ordered by float keys, with
+ * decrease-key. Every item's heap position is tracked, so membership tests are
+ * O(1) and key updates O(log n). Used as the open set of the route searches.
+ */
+public class IndexedHeap {
+    private static final int ABSENT = -1;
+
+    private final int[] heap;
+    private final int[] position;
+    private final float[] keys;
+    private int size;
+
+    public IndexedHeap(int capacity) {
+        this.heap = new int[capacity];
+        this.position = new int[capacity];
+        this.keys = new float[capacity];
+        Arrays.fill(position, ABSENT);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int item) {
+        return position[item] != ABSENT;
+    }
+
+    /**
+     * Key of the item when it was last queued.
+     */
+    public float key(int item) {
+        return keys[item];
+    }
+
+    /**
+     * Queues the item, or moves it to the new key if it is queued already.
+     */
+    public void update(int item, float key) {
+        keys[item] = key;
+        if (position[item] == ABSENT) {
+            heap[size] = item;
+            position[item] = size++;
+        }
+        siftDown(siftUp(position[item]));
+    }
+
+    /**
+     * Returns the item with the smallest key without removing it.
+     */
+    public int peek() {
+        return heap[0];
+    }
+
+    /**
+     * Removes and returns the item with the smallest key.
+     */
+    public int pop() {
+        int top = heap[0];
+        position[top] = ABSENT;
+        int last = heap[--size];
+        if (size > 0) {
+            heap[0] = last;
+            position[last] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /**
+     * Empties the heap in time proportional to its size.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = ABSENT;
+        }
+        size = 0;
+    }
+
+    private int siftUp(int i) {
+        int item = heap[i];
+        while (i > 0) {
+            int up = (i - 1) >>> 1;
+            if (keys[heap[up]] <= keys[item]) {
+                break;
+            }
+            heap[i] = heap[up];
+            position[heap[i]] = i;
+            i = up;
+        }
+        heap[i] = item;
+        position[item] = i;
+        return i;
+    }
+
+    private void siftDown(int i) {
+        int item = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) {
+                child++;
+            }
+            if (keys[item] <= keys[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            position[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = item;
+        position[item] = i;
+    }
+}
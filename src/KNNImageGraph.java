@@ -1,5 +1,6 @@
 import javafx.scene.image.Image;
 import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * Constructs a K-Nearest Neighbor (KNN) image graph and compares graphs based on image similarity.
@@ -7,7 +8,12 @@ import java.util.*;
  */
 public class KNNImageGraph {
     private static final int K = 5; // Number of nearest neighbors
-    private static final int FEATURE_SIZE = 128; // Size of the feature vector (placeholder)
+    // Exact similarity handles this many nodes of the first graph at a time and keeps
+    // at most about this many bytes of node distances between blocks
+    private static final int SIMILARITY_BLOCK = 64;
+    private static final long DISTANCE_CACHE_BYTES = 32L << 20;
+    // Graphs with at least this many images are built approximately with NN-Descent
+    static final int APPROXIMATE_BUILD_THRESHOLD = 5_000;
 
     /**
      * Represents an image node with extracted features and connections to neighbors.
@@ -37,19 +43,163 @@ public class KNNImageGraph {
     }
 
     /**
-     * A graph structure containing all image nodes.
+     * A graph structure containing all image nodes. Edge lists are kept sorted from
+     * closest to farthest neighbour.
      */
     public static class ImageGraph {
         public List<ImageNode> nodes = new ArrayList<>();
+        private GraphSignature signature;
+
+        /**
+         * Returns the graph's signature, computed on first use and recomputed after
+         * addImage or removeImage.
+         */
+        public synchronized GraphSignature signature() {
+            if (signature == null) {
+                signature = GraphSignature.of(this);
+            }
+            return signature;
+        }
+
+        /**
+         * Adds an image without rebuilding the graph. One pass over the existing nodes
+         * finds the new node's K nearest neighbours and, at the same time, every node
+         * for which the new image is closer than its current farthest neighbour; those
+         * nodes get the new image in place of that neighbour.
+         * @return The added node
+         */
+        public ImageNode addImage(String name, double[] features) {
+            ImageNode added = new ImageNode(name, features);
+            TopKSelector nearest = new TopKSelector(K);
+            for (int i = 0; i < nodes.size(); i++) {
+                ImageNode node = nodes.get(i);
+                double distance = VectorKernels.l2(features, node.features);
+                nearest.offer(i, (float) -distance);
+
+                // Patch the reverse direction when the new image enters this node's K nearest
+                List<Edge> edges = node.edges;
+                if (edges.size() < K || distance < edges.get(edges.size() - 1).weight) {
+                    if (edges.size() >= K) {
+                        edges.remove(edges.size() - 1);
+                    }
+                    insertSorted(edges, new Edge(added, distance));
+                }
+            }
+
+            nearest.sort();
+            for (int i = 0; i < nearest.size(); i++) {
+                ImageNode target = nodes.get(nearest.id(i));
+                added.edges.add(new Edge(target, VectorKernels.l2(features, target.features)));
+            }
+            nodes.add(added);
+            signature = null;
+            return added;
+        }
+
+        /**
+         * Removes an image without rebuilding the graph. Every node that pointed to it
+         * gets a replacement neighbour, chosen among its remaining neighbours'
+         * neighbours and the removed node's neighbours; only if none of those is
+         * available are all nodes scanned.
+         * @return False if the node was not part of the graph
+         */
+        public boolean removeImage(ImageNode removed) {
+            int index = nodes.indexOf(removed);
+            if (index < 0) {
+                return false;
+            }
+            nodes.remove(index);
+            signature = null;
+
+            for (ImageNode node : nodes) {
+                boolean affected = node.edges.removeIf(edge -> edge.target == removed);
+                if (affected) {
+                    ImageNode replacement = closestCandidate(node, removed);
+                    if (replacement != null) {
+                        insertSorted(node.edges, new Edge(replacement,
+                                VectorKernels.l2(node.features, replacement.features)));
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Finds the closest node that is not yet a neighbour of the given node, looking
+         * at neighbours of neighbours first and scanning all nodes as a fallback.
+         */
+        private ImageNode closestCandidate(ImageNode node, ImageNode removed) {
+            Set<ImageNode> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+            excluded.add(node);
+            excluded.add(removed);
+            for (Edge edge : node.edges) {
+                excluded.add(edge.target);
+            }
+
+            ImageNode best = null;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            List<Edge> sources = new ArrayList<>(node.edges);
+            sources.addAll(removed.edges);
+            for (Edge source : sources) {
+                for (Edge edge : source.target.edges) {
+                    ImageNode candidate = edge.target;
+                    if (!excluded.contains(candidate)) {
+                        double distance = VectorKernels.l2(node.features, candidate.features);
+                        if (distance < bestDistance) {
+                            best = candidate;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+
+            for (ImageNode candidate : nodes) {
+                if (!excluded.contains(candidate)) {
+                    double distance = VectorKernels.l2(node.features, candidate.features);
+                    if (distance < bestDistance) {
+                        best = candidate;
+                        bestDistance = distance;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Inserts an edge keeping the list sorted by weight.
+         */
+        private static void insertSorted(List<Edge> edges, Edge edge) {
+            int position = edges.size();
+            while (position > 0 && edges.get(position - 1).weight > edge.weight) {
+                position--;
+            }
+            edges.add(position, edge);
+        }
     }
 
     /**
-     * Extracts placeholder feature vectors from an image (to be replaced with real CNN features).
+     * Extracts an image's feature vector: the color histogram, edge histogram and
+     * spatial color features of AdvancedImageComparator, concatenated.
      */
     public static double[] extractFeatures(Image image) {
-        double[] features = new double[FEATURE_SIZE];
-        // TODO: Replace with actual feature extraction (CNN, etc.)
-        return features;
+        return flatten(AdvancedImageComparator.extractFeatures(image));
+    }
+
+    /**
+     * Concatenates the color, edge and spatial features into one vector.
+     */
+    public static double[] flatten(AdvancedImageComparator.ImageFeatures features) {
+        double[] color = features.colorHistogram;
+        double[] edge = features.edgeHistogram;
+        double[] spatial = features.spatialColorFeatures;
+        double[] vector = new double[color.length + edge.length + spatial.length];
+        System.arraycopy(color, 0, vector, 0, color.length);
+        System.arraycopy(edge, 0, vector, color.length, edge.length);
+        System.arraycopy(spatial, 0, vector, color.length + edge.length, spatial.length);
+        return vector;
     }
 
     /**
@@ -59,61 +209,180 @@ public class KNNImageGraph {
      * @return       Graph of image nodes with KNN edges
      */
     public static ImageGraph buildKNNGraph(List<Image> images, List<String> names) {
+        List<double[]> features = new ArrayList<>(images.size());
+        for (Image image : images) {
+            features.add(extractFeatures(image));
+        }
+        return buildKNNGraphFromFeatures(features, names);
+    }
+
+    /**
+     * Builds a KNN graph from already extracted feature vectors. Small graphs compare
+     * every pair of images; large ones are built approximately with {@link NNDescent}.
+     * @param features Feature vector of each image
+     * @param names    Corresponding names
+     * @return         Graph of image nodes with KNN edges
+     */
+    public static ImageGraph buildKNNGraphFromFeatures(List<double[]> features, List<String> names) {
         ImageGraph graph = new ImageGraph();
 
-        // Create graph nodes with extracted features
-        for (int i = 0; i < images.size(); i++) {
-            double[] features = extractFeatures(images.get(i));
-            graph.nodes.add(new ImageNode(names.get(i), features));
+        // Create graph nodes
+        for (int i = 0; i < features.size(); i++) {
+            graph.nodes.add(new ImageNode(names.get(i), features.get(i)));
+        }
+
+        if (features.size() >= APPROXIMATE_BUILD_THRESHOLD) {
+            NNDescent nearest = NNDescent.build(features, K, 42);
+            for (int i = 0; i < graph.nodes.size(); i++) {
+                ImageNode node = graph.nodes.get(i);
+                for (int j = 0; j < nearest.k(); j++) {
+                    node.edges.add(new Edge(graph.nodes.get(nearest.neighbor(i, j)), nearest.distance(i, j)));
+                }
+            }
+            return graph;
         }
 
-        // Build KNN edges
+        // Build KNN edges, keeping the K closest candidates (highest negated distance)
+        TopKSelector nearestNeighbors = new TopKSelector(K);
         for (ImageNode node : graph.nodes) {
-            PriorityQueue<Edge> nearestNeighbors = new PriorityQueue<>(Comparator.comparingDouble(e -> e.weight));
+            nearestNeighbors.reset();
 
-            for (ImageNode other : graph.nodes) {
+            for (int j = 0; j < graph.nodes.size(); j++) {
+                ImageNode other = graph.nodes.get(j);
                 if (node == other) continue;
-                double distance = euclideanDistance(node.features, other.features);
-                nearestNeighbors.add(new Edge(other, distance));
+                nearestNeighbors.offer(j, (float) -VectorKernels.l2(node.features, other.features));
             }
 
-            for (int i = 0; i < K && !nearestNeighbors.isEmpty(); i++) {
-                node.edges.add(nearestNeighbors.poll());
+            nearestNeighbors.sort();
+            for (int i = 0; i < nearestNeighbors.size(); i++) {
+                ImageNode target = graph.nodes.get(nearestNeighbors.id(i));
+                node.edges.add(new Edge(target, VectorKernels.l2(node.features, target.features)));
             }
         }
 
         return graph;
     }
 
+    /**
+     * How graphSimilarity compares two graphs.
+     */
+    public enum SimilarityMode {
+        /** Every node pair with its neighbourhoods; cost grows with |G1| * |G2| * K^2. */
+        EXACT,
+        /** Fixed-size graph signatures; near-constant cost once the signatures exist. */
+        SIGNATURE
+    }
+
     /**
      * Computes overall similarity between two image graphs based on node features and edge structure.
      */
     public static double graphSimilarity(ImageGraph graph1, ImageGraph graph2) {
+        return graphSimilarity(graph1, graph2, SimilarityMode.EXACT);
+    }
+
+    /**
+     * Computes the similarity of two image graphs in the given mode. In SIGNATURE mode
+     * each graph's signature is computed once and kept on the graph.
+     *
+     * <p>EXACT mode works through the first graph in blocks of nodes: a block needs the
+     * distances from its nodes and their neighbours to every node of the second graph.
+     * These rows are kept in a cache of bounded size, so every distance is computed
+     * once when all rows fit and memory stays bounded when they do not. The terms
+     * are summed in node order, so the result does not depend on the number of threads.
+     */
+    public static double graphSimilarity(ImageGraph graph1, ImageGraph graph2, SimilarityMode mode) {
+        if (mode == SimilarityMode.SIGNATURE) {
+            return graph1.signature().similarity(graph2.signature());
+        }
+
+        int[][] targets1 = edgeTargets(graph1);
+        int[][] targets2 = edgeTargets(graph2);
+        double[][] features2 = new double[graph2.nodes.size()][];
+        for (int j = 0; j < features2.length; j++) {
+            features2[j] = graph2.nodes.get(j).features;
+        }
+
+        long rowBytes = Math.max(1L, (long) features2.length * Double.BYTES);
+        int cacheRows = (int) Math.min(Integer.MAX_VALUE,
+                Math.max((long) SIMILARITY_BLOCK * (K + 1), DISTANCE_CACHE_BYTES / rowBytes));
+        Map<Integer, double[]> cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+                return size() > cacheRows;
+            }
+        };
+
         double totalSimilarity = 0;
-        int comparisons = 0;
+        for (int from = 0; from < graph1.nodes.size(); from += SIMILARITY_BLOCK) {
+            int to = Math.min(graph1.nodes.size(), from + SIMILARITY_BLOCK);
 
-        for (ImageNode node1 : graph1.nodes) {
-            for (ImageNode node2 : graph2.nodes) {
-                double nodeSim = 1 / (1 + euclideanDistance(node1.features, node2.features));
-                double structureSim = compareNeighborhoods(node1, node2);
-                totalSimilarity += nodeSim * structureSim;
-                comparisons++;
+            // Every neighbour pair distance is a node pair distance: gather the rows of
+            // the block's nodes and their neighbours, computing the missing ones
+            Map<Integer, double[]> distances = new HashMap<>();
+            List<Integer> missing = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                for (int row = -1; row < targets1[i].length; row++) {
+                    int node = row < 0 ? i : targets1[i][row];
+                    if (!distances.containsKey(node)) {
+                        double[] cached = cache.get(node);
+                        distances.put(node, cached);
+                        if (cached == null) {
+                            missing.add(node);
+                        }
+                    }
+                }
+            }
+            double[][] computed = new double[missing.size()][];
+            IntStream.range(0, computed.length).parallel().forEach(r -> {
+                computed[r] = new double[features2.length];
+                VectorKernels.l2(graph1.nodes.get(missing.get(r)).features, features2, computed[r]);
+            });
+            for (int r = 0; r < computed.length; r++) {
+                distances.put(missing.get(r), computed[r]);
+                cache.put(missing.get(r), computed[r]);
+            }
+
+            int blockStart = from;
+            double[] rowSimilarity = new double[to - from];
+            IntStream.range(from, to).parallel().forEach(i -> {
+                ImageNode node1 = graph1.nodes.get(i);
+                double[] row = distances.get(i);
+                double[][] neighbourRows = new double[targets1[i].length][];
+                for (int a = 0; a < neighbourRows.length; a++) {
+                    neighbourRows[a] = distances.get(targets1[i][a]);
+                }
+                double sum = 0;
+                for (int j = 0; j < features2.length; j++) {
+                    double nodeSim = 1 / (1 + row[j]);
+                    double structureSim = compareNeighborhoods(node1, neighbourRows, graph2.nodes.get(j), targets2[j]);
+                    sum += nodeSim * structureSim;
+                }
+                rowSimilarity[i - blockStart] = sum;
+            });
+            for (double sum : rowSimilarity) {
+                totalSimilarity += sum;
             }
         }
 
-        return totalSimilarity / comparisons;
+        return totalSimilarity / ((double) graph1.nodes.size() * graph2.nodes.size());
     }
 
     /**
      * Compares the neighborhood (edges) of two nodes using feature similarity and edge weight similarity.
+     * @param neighbourRows Per edge of node1, the feature distances from its target to
+     *                      every node of the second graph
+     * @param targets2      Node indices of node2's edge targets in the second graph
      */
-    private static double compareNeighborhoods(ImageNode node1, ImageNode node2) {
+    private static double compareNeighborhoods(ImageNode node1, double[][] neighbourRows, ImageNode node2,
+                                               int[] targets2) {
         double similarity = 0;
 
-        for (Edge edge1 : node1.edges) {
-            for (Edge edge2 : node2.edges) {
-                double featureSim = 1 / (1 + euclideanDistance(edge1.target.features, edge2.target.features));
-                similarity += featureSim * (1 - Math.abs(edge1.weight - edge2.weight));
+        for (int a = 0; a < neighbourRows.length; a++) {
+            double[] row = neighbourRows[a];
+            double weight1 = node1.edges.get(a).weight;
+            for (int b = 0; b < targets2.length; b++) {
+                double featureSim = 1 / (1 + row[targets2[b]]);
+                similarity += featureSim * (1 - Math.abs(weight1 - node2.edges.get(b).weight));
             }
         }
 
@@ -121,13 +390,21 @@ public class KNNImageGraph {
     }
 
     /**
-     * Computes the Euclidean distance between two vectors.
+     * Replaces every node's edge targets by their indices in the node list.
      */
-    private static double euclideanDistance(double[] a, double[] b) {
-        double sum = 0;
-        for (int i = 0; i < a.length; i++) {
-            sum += Math.pow(a[i] - b[i], 2);
+    private static int[][] edgeTargets(ImageGraph graph) {
+        Map<ImageNode, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < graph.nodes.size(); i++) {
+            index.put(graph.nodes.get(i), i);
+        }
+        int[][] targets = new int[graph.nodes.size()][];
+        for (int i = 0; i < targets.length; i++) {
+            List<Edge> edges = graph.nodes.get(i).edges;
+            targets[i] = new int[edges.size()];
+            for (int e = 0; e < edges.size(); e++) {
+                targets[i][e] = index.get(edges.get(e).target);
+            }
         }
-        return Math.sqrt(sum);
+        return targets;
     }
 }
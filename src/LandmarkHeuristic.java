@@ -0,0 +1,380 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ALT (A*, landmarks, triangle inequality) lower bounds on route lengths around
+ * unsafe zones. For a few landmarks the shortest obstacle-aware distance to every
+ * pixel is precomputed, one float table per landmark; by the triangle inequality
+ * the route from a point to the destination is at least as long as the difference
+ * of their distances to any landmark, which is often far more than the straight
+ * line when zones force a detour.
+ *
+ * <p>The tables are computed over the pixels farther than {@code ZONE_RADIUS - 1}
+ * from every zone, moving in eight directions. Every lattice step the route
+ * search can take runs through such pixels at the same cost, so the bounds hold
+ * wherever the lattice is anchored. Landmarks are picked among candidate points,
+ * such as the attractions, by farthest-point selection.
+ *
+ * <p>The zones and candidates the tables were computed for are stored with them,
+ * so stale tables are recognised by comparing those lists exactly.
+ */
+public class LandmarkHeuristic {
+    /** Landmarks used unless a caller asks for another number. */
+    public static final int DEFAULT_LANDMARKS = 8;
+
+    private static final int MAGIC = 0x54524c4d; // "TRLM"
+    private static final int FORMAT_VERSION = 2;
+    private static final float DIAGONAL = (float) Math.sqrt(2);
+    private static final int[] DX = {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] DY = {-1, 0, 1, -1, 1, -1, 0, 1};
+
+    private final int width;
+    private final int height;
+    private final int requested;
+    private final List<Point> zones;
+    private final List<Point> candidates;
+    private final List<Point> landmarks;
+    private final float[][] tables;
+
+    private LandmarkHeuristic(int width, int height, int requested, List<Point> zones, List<Point> candidates,
+                              List<Point> landmarks, float[][] tables) {
+        this.width = width;
+        this.height = height;
+        this.requested = requested;
+        this.zones = zones;
+        this.candidates = candidates;
+        this.landmarks = landmarks;
+        this.tables = tables;
+    }
+
+    /**
+     * Selects landmarks and computes their distance tables for the grid's zones.
+     * @param candidates Points landmarks are picked from; null or empty to pick
+     *                   among all free pixels
+     * @param count      Number of landmarks
+     */
+    public static LandmarkHeuristic build(OccupancyGrid grid, Collection<Point> candidates, int count) {
+        return build(grid.width(), grid.height(), grid.zones(), candidates, count);
+    }
+
+    /**
+     * Selects landmarks and computes their distance tables for a map of the given
+     * size and zones, e.g. a snapshot of a grid taken under its lock.
+     */
+    public static LandmarkHeuristic build(int width, int height, List<Point> zones, Collection<Point> candidates,
+                                          int count) {
+        boolean[] free = freePixels(width, height, zones);
+
+        List<Point> pool = new ArrayList<>();
+        if (candidates != null) {
+            for (Point p : candidates) {
+                if (p.x >= 0 && p.x < width && p.y >= 0 && p.y < height && free[p.y * width + p.x]) {
+                    pool.add(p);
+                }
+            }
+        }
+        if (pool.isEmpty()) {
+            for (int i = 0; i < free.length; i++) {
+                if (free[i]) {
+                    pool.add(new Point(i % width, i / width));
+                }
+            }
+        }
+
+        // Farthest-point selection: start with the candidate farthest from the map
+        // centre, then repeatedly take the one farthest from all chosen landmarks
+        List<Point> landmarks = new ArrayList<>();
+        List<float[]> tables = new ArrayList<>();
+        Point next = null;
+        double farthest = -1;
+        for (Point p : pool) {
+            double d = VectorKernels.pointDistance(p.x, p.y, width / 2.0, height / 2.0);
+            if (d > farthest) {
+                farthest = d;
+                next = p;
+            }
+        }
+        while (next != null && landmarks.size() < count) {
+            landmarks.add(next);
+            tables.add(distances(next, free, width, height));
+            next = null;
+            farthest = 0;
+            for (Point p : pool) {
+                float nearest = Float.POSITIVE_INFINITY;
+                for (float[] table : tables) {
+                    nearest = Math.min(nearest, table[p.y * width + p.x]);
+                }
+                if (nearest != Float.POSITIVE_INFINITY && nearest > farthest) {
+                    farthest = nearest;
+                    next = p;
+                }
+            }
+        }
+        return new LandmarkHeuristic(width, height, count, sortedZones(zones), candidateList(candidates), landmarks,
+                tables.toArray(new float[0][]));
+    }
+
+    /**
+     * Reads the tables for the grid's zones from a file written by {@link #write},
+     * or builds them and rewrites the file if it is missing or stale.
+     */
+    public static LandmarkHeuristic loadOrBuild(OccupancyGrid grid, Collection<Point> candidates, int count,
+            File tableFile) {
+        return loadOrBuild(grid.width(), grid.height(), grid.zones(), candidates, count, tableFile);
+    }
+
+    /**
+     * Like {@link #loadOrBuild(OccupancyGrid, Collection, int, File)} for a map of
+     * the given size and zones.
+     */
+    public static LandmarkHeuristic loadOrBuild(int width, int height, List<Point> zones,
+            Collection<Point> candidates, int count, File tableFile) {
+        if (tableFile.isFile()) {
+            try {
+                LandmarkHeuristic stored = read(tableFile);
+                if (stored.covers(width, height, zones, candidates, count)) {
+                    return stored;
+                }
+            } catch (IOException e) {
+                System.err.println("Rebuilding landmark tables: " + e.getMessage());
+            }
+        }
+
+        LandmarkHeuristic built = build(width, height, zones, candidates, count);
+        try {
+            built.write(tableFile);
+        } catch (IOException e) {
+            System.err.println("Failed to save landmark tables: " + e.getMessage());
+        }
+        return built;
+    }
+
+    /**
+     * True if the tables were computed for this grid's size and zones and the
+     * given landmark candidates and count.
+     */
+    public boolean covers(OccupancyGrid grid, Collection<Point> candidates, int count) {
+        return covers(grid.width(), grid.height(), grid.zones(), candidates, count);
+    }
+
+    /**
+     * True if the tables were computed for a map of this size and zones and the
+     * given landmark candidates and count.
+     */
+    public boolean covers(int width, int height, List<Point> zones, Collection<Point> candidates, int count) {
+        return this.width == width && this.height == height && requested == count
+                && this.zones.equals(sortedZones(zones)) && this.candidates.equals(candidateList(candidates));
+    }
+
+    public int count() {
+        return tables.length;
+    }
+
+    public List<Point> landmarks() {
+        return landmarks;
+    }
+
+    /**
+     * Obstacle-aware distance from a landmark to a pixel, or infinity if the
+     * pixel cannot be reached from it.
+     */
+    public float distance(int landmark, int x, int y) {
+        return tables[landmark][y * width + x];
+    }
+
+    /**
+     * Lower bound on the route length from a pixel to the nearest of a set of
+     * destination pixels.
+     * @param lower Per landmark, the smallest distance to a destination pixel
+     * @param upper Per landmark, the largest distance to a destination pixel;
+     *              landmarks that reach no destination pixel hold infinity in lower
+     */
+    public float estimate(int x, int y, float[] lower, float[] upper) {
+        int pixel = y * width + x;
+        float best = 0;
+        for (int l = 0; l < tables.length; l++) {
+            float d = tables[l][pixel];
+            if (d != Float.POSITIVE_INFINITY && lower[l] != Float.POSITIVE_INFINITY) {
+                best = Math.max(best, Math.max(lower[l] - d, d - upper[l]));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Writes the tables to a temporary file and moves it into place.
+     */
+    void write(File tableFile) throws IOException {
+        File parent = tableFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("could not create " + parent);
+        }
+
+        File tmp = new File(tableFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(requested);
+            writePoints(out, zones);
+            writePoints(out, candidates);
+            writePoints(out, landmarks);
+            for (float[] table : tables) {
+                for (float d : table) {
+                    out.writeFloat(d);
+                }
+            }
+        }
+
+        Files.move(tmp.toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a table file by memory-mapping it.
+     */
+    static LandmarkHeuristic read(File tableFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported landmark table format");
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int requested = buffer.getInt();
+            List<Point> zones = readPoints(buffer);
+            List<Point> candidates = readPoints(buffer);
+            List<Point> landmarks = readPoints(buffer);
+            int count = landmarks.size();
+            if (width <= 0 || height <= 0 || buffer.remaining() != (long) count * width * height * 4) {
+                throw new IOException("truncated landmark table file");
+            }
+            FloatBuffer floats = buffer.asFloatBuffer();
+            float[][] tables = new float[count][width * height];
+            for (float[] table : tables) {
+                floats.get(table);
+            }
+            return new LandmarkHeuristic(width, height, requested, zones, candidates, landmarks, tables);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt landmark table file", e);
+        }
+    }
+
+    private static void writePoints(DataOutputStream out, List<Point> points) throws IOException {
+        out.writeInt(points.size());
+        for (Point p : points) {
+            out.writeInt(p.x);
+            out.writeInt(p.y);
+        }
+    }
+
+    private static List<Point> readPoints(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 8) {
+            throw new IOException("truncated landmark table file");
+        }
+        List<Point> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new Point(buffer.getInt(), buffer.getInt()));
+        }
+        return points;
+    }
+
+    /**
+     * Dijkstra search over the free pixels from one landmark.
+     */
+    private static float[] distances(Point source, boolean[] free, int width, int height) {
+        float[] dist = new float[width * height];
+        Arrays.fill(dist, Float.POSITIVE_INFINITY);
+        IndexedHeap open = new IndexedHeap(width * height);
+        int start = source.y * width + source.x;
+        dist[start] = 0;
+        open.update(start, 0);
+        while (!open.isEmpty()) {
+            int current = open.pop();
+            int x = current % width;
+            int y = current / width;
+            for (int dir = 0; dir < DX.length; dir++) {
+                int nx = x + DX[dir];
+                int ny = y + DY[dir];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height || !free[ny * width + nx]) {
+                    continue;
+                }
+                int next = ny * width + nx;
+                float tentative = dist[current] + (DX[dir] != 0 && DY[dir] != 0 ? DIAGONAL : 1);
+                if (tentative < dist[next]) {
+                    dist[next] = tentative;
+                    open.update(next, tentative);
+                }
+            }
+        }
+        return dist;
+    }
+
+    /**
+     * Pixels at least {@code ZONE_RADIUS - 1} from every zone. Lattice points the
+     * route search may visit are at least ZONE_RADIUS away, and a step of at most
+     * STEP * sqrt(2) pixels between two of them passes no closer than about
+     * ZONE_RADIUS - 0.25.
+     */
+    private static boolean[] freePixels(int width, int height, List<Point> zones) {
+        boolean[] free = new boolean[width * height];
+        Arrays.fill(free, true);
+        int radius = OccupancyGrid.ZONE_RADIUS - 1;
+        for (Point zone : zones) {
+            for (int y = Math.max(0, zone.y - radius); y <= Math.min(height - 1, zone.y + radius); y++) {
+                for (int x = Math.max(0, zone.x - radius); x <= Math.min(width - 1, zone.x + radius); x++) {
+                    int dx = x - zone.x;
+                    int dy = y - zone.y;
+                    if (dx * dx + dy * dy < radius * radius) {
+                        free[y * width + x] = false;
+                    }
+                }
+            }
+        }
+        return free;
+    }
+
+    /**
+     * The zones in a fixed order, as the tables do not depend on zone order.
+     */
+    private static List<Point> sortedZones(List<Point> zones) {
+        List<Point> sorted = new ArrayList<>(zones.size());
+        for (Point zone : zones) {
+            sorted.add(new Point(zone.x, zone.y));
+        }
+        sorted.sort(Comparator.comparingInt((Point p) -> p.x).thenComparingInt(p -> p.y));
+        return sorted;
+    }
+
+    /**
+     * Copies the candidates in iteration order, which decides ties in landmark
+     * selection; null becomes an empty list.
+     */
+    private static List<Point> candidateList(Collection<Point> candidates) {
+        List<Point> list = new ArrayList<>();
+        if (candidates != null) {
+            for (Point p : candidates) {
+                list.add(new Point(p.x, p.y));
+            }
+        }
+        return list;
+    }
+}
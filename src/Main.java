@@ -1,4 +1,5 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -16,7 +17,7 @@ import javafx.stage.Stage;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
 
 /**
  * Main class for the South Africa Tourism Route Optimizer application. This
@@ -28,9 +29,21 @@ public class Main extends Application {
 	private final String ATTRACTION_PATH = "data/images/attractions";
 	private final String MAP_PATH = "data/images/map/Map.jpg";
 	private final String COORDINATES_CSV = "data/images/map/expanded_south_africa_attractions.csv";
+	private final String FEATURE_INDEX_PATH = "data/index/attractions.idx";
+	private final String THUMBNAIL_ATLAS_PATH = "data/index/thumbnails.atlas";
+	private final String LANDMARK_TABLE_PATH = "data/index/landmarks.alt";
+
+	// Route search mode: -Droute.search=astar (default), jump_point, hierarchical,
+	// bidirectional or landmark
+	private final GridSearchEngine.SearchMode ROUTE_SEARCH_MODE = routeSearchMode();
+	// -Droute.compare=true also runs plain A* at the same heuristic weight for other
+	// modes and reports its expansions; off by default as it doubles the query time
+	private final boolean ROUTE_COMPARE = Boolean.getBoolean("route.compare")
+			&& ROUTE_SEARCH_MODE != GridSearchEngine.SearchMode.ASTAR;
 
 	// === State Variables ===
 	private Image uploadedImage;
+	private File uploadedFile;
 	private ImageView previewImageView = new ImageView();
 	private TextArea resultsArea = new TextArea();
 
@@ -41,11 +54,37 @@ public class Main extends Application {
 	private String selectedDestinationName = null;
 	private final List<Point> unsafeZones = generateUnsafeZones(26, 700, 500);
 	private List<Point> calculatedPath = new ArrayList<>();
+	private int routeExpanded;
+	private int routeExpandedBackward;
+	private int baselineExpanded;
+	private volatile FeatureIndex featureIndex;
+	private volatile boolean shuttingDown = false;
+	private final QueryResultCache queryCache = new QueryResultCache(64);
+	private volatile CatalogWatcher catalogWatcher;
+	private volatile ThumbnailAtlas thumbnailAtlas;
+	private final Label indexStatus = new Label();
 
 	@Override
 	public void start(Stage primaryStage) {
 		showIntroScreen(primaryStage);
 		loadAttractionCoordinates();
+		PathFinder.setLandmarkSource(attractionCoordinates.values(), new File(LANDMARK_TABLE_PATH));
+		loadFeatureIndex();
+		if (ROUTE_SEARCH_MODE == GridSearchEngine.SearchMode.LANDMARK) {
+			prepareLandmarks();
+		}
+	}
+
+	@Override
+	public void stop() {
+		shuttingDown = true;
+		if (catalogWatcher != null) {
+			try {
+				catalogWatcher.close();
+			} catch (IOException e) {
+				System.err.println("Failed to stop catalog watcher: " + e.getMessage());
+			}
+		}
 	}
 
 	/**
@@ -97,7 +136,9 @@ public class Main extends Application {
 				"-fx-background-color: #2196f3; -fx-text-fill: white; -fx-background-radius: 12; -fx-font-size: 14px; -fx-padding: 8px 16px;");
 		continueBtn.setOnAction(e -> showWelcomeScreen(stage));
 
-		VBox content = new VBox(30, title, continueBtn);
+		indexStatus.setStyle("-fx-font-size: 12px; -fx-text-fill: white;");
+
+		VBox content = new VBox(30, title, continueBtn, indexStatus);
 		content.setAlignment(Pos.CENTER);
 
 		StackPane root = new StackPane(bgView, overlay, content);
@@ -192,20 +233,28 @@ public class Main extends Application {
 			FileChooser fileChooser = new FileChooser();
 			File imageFile = fileChooser.showOpenDialog(stage);
 			if (imageFile != null) {
-				uploadedImage = new Image(imageFile.toURI().toString());
+				uploadedFile = imageFile;
+				uploadedImage = ImageLoader.loadScaled(imageFile, 800, 800);
 				previewImageView.setImage(uploadedImage);
 			}
 		});
 
 		searchBtn.setOnAction(e -> {
-			if (uploadedImage != null) {
-				findSimilarAttractions();
-				showResultsWithMap(stage);
+			if (uploadedImage != null && featureIndex == null) {
+				showAlert("The attraction catalog is still being indexed, please try again shortly");
+			} else if (uploadedImage != null) {
+				try {
+					findSimilarAttractions();
+					showResultsWithMap(stage);
+				} catch (IOException ex) {
+					showAlert("Could not read the uploaded image: " + ex.getMessage());
+				}
 			}
 		});
 
 		resetBtn.setOnAction(e -> {
 			uploadedImage = null;
+			uploadedFile = null;
 			previewImageView.setImage(null);
 		});
 
@@ -230,29 +279,28 @@ public class Main extends Application {
 		stage.show();
 	}
 
-	private void findSimilarAttractions() {
-		File folder = new File(ATTRACTION_PATH);
-		List<ImageEntry> entries = new ArrayList<>();
+	private void findSimilarAttractions() throws IOException {
+		// Repeated uploads of the same photo against the same catalog are answered from the cache
+		FeatureIndex index = featureIndex;
+		long contentHash = QueryResultCache.contentHash(uploadedFile);
+		List<String> cached = queryCache.get(contentHash, index.getVersion());
+		if (cached != null) {
+			topMatches = new ArrayList<>(cached);
+			return;
+		}
 
-		// Extract features from query image
-		AdvancedImageComparator.ImageFeatures queryFeatures = AdvancedImageComparator.extractFeatures(uploadedImage);
+		// Extract features from the query image, decoded at feature resolution
+		AdvancedImageComparator.ImageFeatures queryFeatures = ImageLoader.extractFeatures(uploadedFile);
 
-		// Process all candidate images
-		for (File file : Objects.requireNonNull(folder.listFiles())) {
-			if (file.getName().endsWith(".jpg") || file.getName().endsWith(".png")) {
-				Image candidate = new Image(file.toURI().toString());
-				AdvancedImageComparator.ImageFeatures features = AdvancedImageComparator.extractFeatures(candidate);
-				String name = file.getName().split("\\.")[0];
+		// Search the precomputed catalog features for the best matches
+		TopKSelector best = index.findMostSimilar(queryFeatures, 6);
+		best.sort();
 
-				ImageEntry entry = new ImageEntry(name, features);
-				entry.similarity = AdvancedImageComparator.compareImages(queryFeatures, features);
-				entries.add(entry);
-			}
+		topMatches = new ArrayList<>();
+		for (int i = 0; i < best.size(); i++) {
+			topMatches.add(index.name(best.id(i)));
 		}
-
-		// Sort by similarity (descending)
-		entries.sort((a, b) -> Double.compare(b.similarity, a.similarity));
-		topMatches = entries.stream().limit(6).map(e -> e.name).collect(Collectors.toList());
+		queryCache.put(contentHash, index.getVersion(), topMatches);
 	}
 
 	private void showResultsWithMap(Stage stage) {
@@ -274,16 +322,25 @@ public class Main extends Application {
 		int col = 0;
 		int row = 0;
 		int columns = 5;
+		ThumbnailAtlas atlas = thumbnailAtlas;
 
 		for (String name : topMatches) {
-			File file = new File(ATTRACTION_PATH + "/" + name + ".jpg");
-			if (!file.exists()) {
-				file = new File(ATTRACTION_PATH + "/" + name + ".png");
+			// Thumbnails come from the precomputed atlas; only images missing from it are decoded here
+			ThumbnailAtlas.Entry thumbnail = atlas == null ? null : atlas.find(name);
+			File file;
+			ImageView thumbView;
+			if (thumbnail != null) {
+				file = new File(ATTRACTION_PATH, thumbnail.fileName);
+				thumbView = atlas.createView(thumbnail);
+			} else {
+				file = new File(ATTRACTION_PATH + "/" + name + ".jpg");
+				if (!file.exists()) {
+					file = new File(ATTRACTION_PATH + "/" + name + ".png");
+				}
+				if (!file.exists())
+					continue;
+				thumbView = new ImageView(ImageLoader.loadScaled(file, 100, 100));
 			}
-			if (!file.exists())
-				continue;
-
-			ImageView thumbView = new ImageView(new Image(file.toURI().toString(), 100, 100, true, true));
 			thumbView.setStyle("-fx-cursor: hand;");
 			thumbView.setOnMouseEntered(e -> thumbView.setEffect(new DropShadow()));
 			thumbView.setOnMouseExited(e -> thumbView.setEffect(null));
@@ -395,7 +452,15 @@ public class Main extends Application {
 		generateRouteBtn.setDisable(selectedStartPoint == null || selectedDestinationPoint == null);
 		generateRouteBtn.setOnAction(e -> {
 			calculatedPath = PathFinder.calculatePath(selectedStartPoint, selectedDestinationPoint, unsafeZones, 700,
-					500);
+					500, ROUTE_SEARCH_MODE);
+			routeExpanded = PathFinder.lastExpandedCount();
+			routeExpandedBackward = PathFinder.lastExpandedBackwardCount();
+			if (ROUTE_COMPARE) {
+				// Plain A* at the same weight, so the counts are comparable
+				PathFinder.calculatePath(selectedStartPoint, selectedDestinationPoint, unsafeZones, 700, 500,
+						GridSearchEngine.SearchMode.ASTAR, 1);
+				baselineExpanded = PathFinder.lastExpandedCount();
+			}
 			MapRenderer.drawMap(canvas, MAP_PATH, unsafeZones, topMatches, attractionCoordinates, selectedStartPoint,
 					selectedDestinationPoint, calculatedPath);
 			updateResultsArea(generateRouteDescription());
@@ -507,6 +572,14 @@ public class Main extends Application {
 		sb.append("Path segments: ").append(calculatedPath.size()).append("\n");
 		sb.append("Total distance: ").append(String.format("%.1f pixels", calculateTotalDistance())).append("\n");
 		sb.append("Unsafe zones avoided: ").append(countAvoidedZones()).append("\n");
+		sb.append("Points expanded: ").append(routeExpanded).append("\n");
+		if (ROUTE_SEARCH_MODE == GridSearchEngine.SearchMode.BIDIRECTIONAL) {
+			sb.append("  from start: ").append(routeExpanded - routeExpandedBackward)
+					.append(", from destination: ").append(routeExpandedBackward).append("\n");
+		}
+		if (ROUTE_COMPARE) {
+			sb.append("Points expanded by A* at the same weight: ").append(baselineExpanded).append("\n");
+		}
 
 		return sb.toString();
 	}
@@ -548,8 +621,18 @@ public class Main extends Application {
 		alert.showAndWait();
 	}
 
+	private static GridSearchEngine.SearchMode routeSearchMode() {
+		String mode = System.getProperty("route.search", "astar");
+		try {
+			return GridSearchEngine.SearchMode.valueOf(mode.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown route.search mode " + mode + ", using astar");
+			return GridSearchEngine.SearchMode.ASTAR;
+		}
+	}
+
 	private double distance(Point p1, Point p2) {
-		return Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2));
+		return VectorKernels.pointDistance(p1.x, p1.y, p2.x, p2.y);
 	}
 
 	@SuppressWarnings("unused")
@@ -559,7 +642,7 @@ public class Main extends Application {
 	}
 
 	private double distance(int x1, int y1, int x2, int y2) {
-		return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+		return VectorKernels.pointDistance(x1, y1, x2, y2);
 	}
 
 	private void loadAttractionCoordinates() {
@@ -604,6 +687,58 @@ public class Main extends Application {
 		}
 	}
 
+	/**
+	 * Brings the catalog feature index up to date on a background thread so the
+	 * intro screen stays responsive while new images are being indexed, then keeps
+	 * it and the thumbnail atlas in sync with the attraction directory.
+	 */
+	private void loadFeatureIndex() {
+		Thread loader = new Thread(() -> {
+			try {
+				File imageDir = new File(ATTRACTION_PATH);
+				File indexFile = new File(FEATURE_INDEX_PATH);
+				File atlasFile = new File(THUMBNAIL_ATLAS_PATH);
+				featureIndex = FeatureIndex.loadOrBuild(imageDir, indexFile, this::reportIndexProgress,
+						() -> shuttingDown);
+				thumbnailAtlas = ThumbnailAtlas.loadOrBuild(featureIndex, imageDir, atlasFile, null);
+				catalogWatcher = new CatalogWatcher(imageDir, indexFile, featureIndex, index -> {
+					featureIndex = index;
+					try {
+						thumbnailAtlas = ThumbnailAtlas.loadOrBuild(index, imageDir, atlasFile, thumbnailAtlas);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+			} catch (IOException e) {
+				System.err.println("Catalog changes will not be picked up: " + e.getMessage());
+			} catch (InterruptedException | CancellationException e) {
+				System.err.println("Feature indexing stopped: " + e.getMessage());
+			}
+		}, "feature-index-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Loads or builds the landmark tables on a background thread so the first
+	 * landmark route query does not compute them on the UI thread.
+	 */
+	private void prepareLandmarks() {
+		Thread loader = new Thread(() -> PathFinder.prepareLandmarks(unsafeZones, 700, 500), "landmark-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Shows indexing progress on the intro screen; cleared once every image is indexed.
+	 */
+	private void reportIndexProgress(int completed, int total) {
+		if (completed == total || completed % Math.max(1, total / 100) == 0) {
+			String status = completed == total ? "" : "Indexing attraction images: " + completed + "/" + total;
+			Platform.runLater(() -> indexStatus.setText(status));
+		}
+	}
+
 	public static void main(String[] args) {
 		launch();
 	}
@@ -0,0 +1,384 @@
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate K-nearest-neighbour graph built with NN-Descent: starting from random
+ * neighbour lists, each round compares the neighbours of every node with each other
+ * ("a neighbour of a neighbour is likely a neighbour") and keeps the closest ones.
+ * Rounds run in parallel over all cores and stop once hardly any list changes.
+ * Neighbour lists live in flat primitive arrays, so the build allocates no per-pair
+ * objects. Short lists converge poorly, so lists are at least {@code MIN_POOL} long
+ * while building and only the closest k are exposed.
+ */
+public class NNDescent {
+    // Fraction of each neighbour list sampled into the join per round
+    private static final double SAMPLE_RATE = 1.0;
+    // Stop once fewer than this fraction of all neighbour slots changed in a round
+    private static final double CONVERGENCE = 0.001;
+    private static final int MAX_ROUNDS = 30;
+    private static final int MIN_POOL = 20;
+    private static final int NODES_PER_TASK = 1024;
+    private static final int LOCK_STRIPES = 4096;
+
+    private final int size;
+    private final int dimensions;
+    private final int k;
+    // Neighbour slots per node while building
+    private final int pool;
+    private final double[] vectors;
+    // Neighbour ids and squared distances; while building, a max-heap per node
+    private final int[] neighbors;
+    private final float[] distances;
+    private final boolean[] fresh;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private int rounds;
+
+    private NNDescent(List<double[]> features, int k) {
+        this.size = features.size();
+        this.dimensions = size == 0 ? 0 : features.get(0).length;
+        this.k = Math.min(k, Math.max(0, size - 1));
+        this.pool = Math.min(Math.max(k, MIN_POOL), Math.max(0, size - 1));
+        this.vectors = new double[size * dimensions];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(features.get(i), 0, vectors, i * dimensions, dimensions);
+        }
+        this.neighbors = new int[size * pool];
+        this.distances = new float[size * pool];
+        this.fresh = new boolean[size * pool];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Builds the approximate KNN graph of the given feature vectors.
+     * @param features Feature vector of each node, all of equal length
+     * @param k        Neighbours per node (capped at size - 1)
+     * @param seed     Seed for the random initial graph and sampling
+     * @return         The converged graph, neighbours sorted closest first
+     */
+    public static NNDescent build(List<double[]> features, int k, long seed) {
+        NNDescent graph = new NNDescent(features, k);
+        graph.initialize(seed);
+        Random random = new Random(seed);
+        long threshold = (long) (CONVERGENCE * graph.size * graph.pool);
+        while (graph.rounds < MAX_ROUNDS && graph.pool > 0) {
+            graph.rounds++;
+            if (graph.refine(random.nextLong()) <= threshold) {
+                break;
+            }
+        }
+        graph.sortNeighbors();
+        return graph;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Neighbours per node.
+     */
+    public int k() {
+        return k;
+    }
+
+    /**
+     * Number of refinement rounds the build ran.
+     */
+    public int rounds() {
+        return rounds;
+    }
+
+    /**
+     * Returns the i-th closest neighbour of a node.
+     */
+    public int neighbor(int node, int i) {
+        return neighbors[node * pool + i];
+    }
+
+    /**
+     * Euclidean distance from a node to its i-th closest neighbour.
+     */
+    public double distance(int node, int i) {
+        return Math.sqrt(distances[node * pool + i]);
+    }
+
+    /**
+     * Measures the fraction of exact K nearest neighbours found, over randomly
+     * sampled nodes whose exact neighbours are computed by brute force.
+     */
+    public double measureRecall(int samples, long seed) {
+        Random random = new Random(seed);
+        TopKSelector exact = new TopKSelector(Math.max(1, k));
+        int found = 0;
+        int expected = 0;
+        for (int s = 0; s < samples && k > 0; s++) {
+            int node = random.nextInt(size);
+            exact.reset();
+            for (int other = 0; other < size; other++) {
+                if (other != node) {
+                    exact.offer(other, -squaredDistance(node, other));
+                }
+            }
+            expected += exact.size();
+            for (int i = 0; i < exact.size(); i++) {
+                for (int j = 0; j < k; j++) {
+                    if (neighbor(node, j) == exact.id(i)) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        return expected == 0 ? 1 : (double) found / expected;
+    }
+
+    /**
+     * Fills every neighbour list with distinct random nodes.
+     */
+    private void initialize(long seed) {
+        IntStream.range(0, tasks()).parallel().forEach(task -> {
+            SplittableRandom random = new SplittableRandom(seed + task);
+            for (int node = task * NODES_PER_TASK; node < Math.min(size, (task + 1) * NODES_PER_TASK); node++) {
+                int base = node * pool;
+                for (int filled = 0; filled < pool; ) {
+                    int candidate = random.nextInt(size);
+                    if (candidate != node && !contains(base, filled, candidate)) {
+                        neighbors[base + filled] = candidate;
+                        distances[base + filled] = squaredDistance(node, candidate);
+                        fresh[base + filled] = true;
+                        siftUp(base, filled++);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs one round: samples new and old neighbours of every node, adds reverse
+     * neighbours, and joins each node's candidates pairwise.
+     * @return Number of neighbour list updates
+     */
+    private long refine(long seed) {
+        int capacity = Math.max(1, (int) (SAMPLE_RATE * pool));
+        int[] newForward = new int[size * capacity];
+        int[] oldForward = new int[size * capacity];
+        int[] newCount = new int[size];
+        int[] oldCount = new int[size];
+
+        // Forward samples; new entries that take part are no longer new afterwards
+        IntStream.range(0, tasks()).parallel().forEach(task -> {
+            SplittableRandom random = new SplittableRandom(seed + task);
+            for (int node = task * NODES_PER_TASK; node < Math.min(size, (task + 1) * NODES_PER_TASK); node++) {
+                int base = node * pool;
+                int seenNew = 0;
+                int seenOld = 0;
+                for (int i = 0; i < pool; i++) {
+                    if (fresh[base + i]) {
+                        seenNew = sample(newForward, newCount, node, capacity, seenNew, neighbors[base + i], random);
+                    } else {
+                        seenOld = sample(oldForward, oldCount, node, capacity, seenOld, neighbors[base + i], random);
+                    }
+                }
+                for (int i = 0; i < pool; i++) {
+                    if (fresh[base + i] && contains(newForward, node * capacity, newCount[node], neighbors[base + i])) {
+                        fresh[base + i] = false;
+                    }
+                }
+            }
+        });
+
+        // Reverse samples: node v appears in the lists of the nodes it points to
+        int[] newReverse = new int[size * capacity];
+        int[] oldReverse = new int[size * capacity];
+        int[] newReverseCount = new int[size];
+        int[] oldReverseCount = new int[size];
+        int[] newSeen = new int[size];
+        int[] oldSeen = new int[size];
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int node = 0; node < size; node++) {
+            for (int i = 0; i < newCount[node]; i++) {
+                int target = newForward[node * capacity + i];
+                newSeen[target] = sample(newReverse, newReverseCount, target, capacity, newSeen[target], node, random);
+            }
+            for (int i = 0; i < oldCount[node]; i++) {
+                int target = oldForward[node * capacity + i];
+                oldSeen[target] = sample(oldReverse, oldReverseCount, target, capacity, oldSeen[target], node, random);
+            }
+        }
+
+        return IntStream.range(0, tasks()).parallel().mapToLong(task -> {
+            int[] news = new int[2 * capacity];
+            int[] olds = new int[2 * capacity];
+            long updates = 0;
+            for (int node = task * NODES_PER_TASK; node < Math.min(size, (task + 1) * NODES_PER_TASK); node++) {
+                int newTotal = merge(newForward, newCount[node], newReverse, newReverseCount[node],
+                        node * capacity, news);
+                int oldTotal = merge(oldForward, oldCount[node], oldReverse, oldReverseCount[node],
+                        node * capacity, olds);
+                for (int i = 0; i < newTotal; i++) {
+                    int a = news[i];
+                    for (int j = i + 1; j < newTotal; j++) {
+                        updates += join(a, news[j]);
+                    }
+                    for (int j = 0; j < oldTotal; j++) {
+                        updates += join(a, olds[j]);
+                    }
+                }
+            }
+            return updates;
+        }).sum();
+    }
+
+    /**
+     * Reservoir-samples a value into a node's fixed-size slot list.
+     * @return The number of values seen for this list so far
+     */
+    private static int sample(int[] slots, int[] counts, int node, int capacity, int seen, int value,
+                              SplittableRandom random) {
+        if (counts[node] < capacity) {
+            slots[node * capacity + counts[node]++] = value;
+        } else {
+            int slot = random.nextInt(seen + 1);
+            if (slot < capacity) {
+                slots[node * capacity + slot] = value;
+            }
+        }
+        return seen + 1;
+    }
+
+    /**
+     * Concatenates a node's forward and reverse samples into dst, skipping duplicates.
+     */
+    private static int merge(int[] forward, int forwardCount, int[] reverse, int reverseCount, int offset, int[] dst) {
+        int total = 0;
+        for (int i = 0; i < forwardCount; i++) {
+            dst[total++] = forward[offset + i];
+        }
+        for (int i = 0; i < reverseCount; i++) {
+            if (!contains(dst, 0, total, reverse[offset + i])) {
+                dst[total++] = reverse[offset + i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Offers two candidates to each other's neighbour lists.
+     * @return Number of lists that changed
+     */
+    private int join(int a, int b) {
+        if (a == b) {
+            return 0;
+        }
+        float distance = squaredDistance(a, b);
+        return insert(a, b, distance) + insert(b, a, distance);
+    }
+
+    /**
+     * Inserts a neighbour into a node's list if it is closer than the current worst.
+     * @return 1 if the list changed, otherwise 0
+     */
+    private int insert(int node, int candidate, float distance) {
+        int base = node * pool;
+        // Unsynchronized pre-check; the worst distance only ever shrinks
+        if (distance >= distances[base]) {
+            return 0;
+        }
+        synchronized (locks[node % LOCK_STRIPES]) {
+            if (distance >= distances[base] || contains(base, pool, candidate)) {
+                return 0;
+            }
+            neighbors[base] = candidate;
+            distances[base] = distance;
+            fresh[base] = true;
+            siftDown(base);
+            return 1;
+        }
+    }
+
+    private boolean contains(int base, int count, int candidate) {
+        return contains(neighbors, base, count, candidate);
+    }
+
+    private static boolean contains(int[] values, int offset, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[offset + i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void siftUp(int base, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (distances[base + parent] >= distances[base + i]) {
+                break;
+            }
+            swap(base + parent, base + i);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int base) {
+        siftDown(base, 0, pool);
+    }
+
+    private void siftDown(int base, int i, int count) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < count && distances[base + left] > distances[base + largest]) {
+                largest = left;
+            }
+            if (right < count && distances[base + right] > distances[base + largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(base + i, base + largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int id = neighbors[i];
+        neighbors[i] = neighbors[j];
+        neighbors[j] = id;
+        float distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+        boolean isFresh = fresh[i];
+        fresh[i] = fresh[j];
+        fresh[j] = isFresh;
+    }
+
+    /**
+     * Heap-sorts every neighbour list so the closest neighbour comes first.
+     */
+    private void sortNeighbors() {
+        IntStream.range(0, tasks()).parallel().forEach(task -> {
+            for (int node = task * NODES_PER_TASK; node < Math.min(size, (task + 1) * NODES_PER_TASK); node++) {
+                int base = node * pool;
+                for (int end = pool - 1; end > 0; end--) {
+                    swap(base, base + end);
+                    siftDown(base, 0, end);
+                }
+            }
+        });
+    }
+
+    private int tasks() {
+        return (size + NODES_PER_TASK - 1) / NODES_PER_TASK;
+    }
+
+    private float squaredDistance(int a, int b) {
+        return (float) VectorKernels.squaredL2(vectors, a * dimensions, vectors, b * dimensions, dimensions);
+    }
+}
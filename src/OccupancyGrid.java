@@ -0,0 +1,224 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pixels of the map blocked by unsafe zones, one bit per pixel, row by row. Each
+ * zone blocks a disc of {@link #ZONE_RADIUS} pixels. Zones are added and removed
+ * incrementally by redrawing only the affected disc, and every change bumps the
+ * grid's version and is logged with the rectangle it affected. The route planner shares one grid through {@link #shared}, so
+ * repeated queries over the same zones skip rasterization entirely.
+ *
+ * <p>Changes are synchronized on the grid; readers that must not observe a
+ * change halfway hold the grid's lock while they read.
+ */
+public class OccupancyGrid {
+    /** Radius of the disc blocked around an unsafe zone, in pixels. */
+    public static final int ZONE_RADIUS = 25;
+    private static final int CHANGE_LOG_SIZE = 256;
+
+    private static OccupancyGrid shared;
+
+    private final int width;
+    private final int height;
+    private final long[] bits;
+    private final List<Point> zones = new ArrayList<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private long version;
+
+    /**
+     * Pixel rectangle, [minX, maxX) by [minY, maxY), whose blocked state may have
+     * changed with a version.
+     */
+    public static class Change {
+        public final long version;
+        public final int minX;
+        public final int minY;
+        public final int maxX;
+        public final int maxY;
+
+        Change(long version, int minX, int minY, int maxX, int maxY) {
+            this.version = version;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+    }
+
+    public OccupancyGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.bits = new long[(int) (((long) width * height + 63) / 64)];
+    }
+
+    public OccupancyGrid(int width, int height, List<Point> zones) {
+        this(width, height);
+        for (Point zone : zones) {
+            addZone(zone);
+        }
+    }
+
+    /**
+     * Returns the grid shared by route queries, updated to the given zones. Only
+     * zones that differ from the previous call are redrawn; a different map size
+     * starts a new grid.
+     */
+    public static synchronized OccupancyGrid shared(int width, int height, List<Point> zones) {
+        if (shared == null || shared.width != width || shared.height != height) {
+            shared = new OccupancyGrid(width, height, zones);
+        } else {
+            shared.setZones(zones);
+        }
+        return shared;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Incremented by every change to the blocked pixels.
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Returns the changes made after the given version, oldest first, so derived
+     * structures can update only the affected regions.
+     * @return The changes, or null if they are no longer all recorded
+     */
+    public synchronized List<Change> changesSince(long since) {
+        if (since > version || (since < version && (changes.isEmpty() || changes.peekFirst().version > since + 1))) {
+            return null;
+        }
+        List<Change> result = new ArrayList<>();
+        for (Change change : changes) {
+            if (change.version > since) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    public synchronized List<Point> zones() {
+        return Collections.unmodifiableList(new ArrayList<>(zones));
+    }
+
+    /**
+     * True if the pixel lies within an unsafe zone. Coordinates must be on the map.
+     */
+    public boolean isBlocked(int x, int y) {
+        int i = y * width + x;
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public synchronized void addZone(Point zone) {
+        zones.add(zone);
+        draw(zone, true, 0, 0, width, height);
+        recordChange(zone);
+    }
+
+    /**
+     * Removes one zone at the given point, keeping pixels still covered by other zones.
+     * @return False if there is no such zone
+     */
+    public synchronized boolean removeZone(Point zone) {
+        if (!zones.remove(zone)) {
+            return false;
+        }
+        int minX = Math.max(0, zone.x - ZONE_RADIUS);
+        int minY = Math.max(0, zone.y - ZONE_RADIUS);
+        int maxX = Math.min(width, zone.x + ZONE_RADIUS);
+        int maxY = Math.min(height, zone.y + ZONE_RADIUS);
+        draw(zone, false, minX, minY, maxX, maxY);
+        for (Point other : zones) {
+            if (Math.abs(other.x - zone.x) < 2 * ZONE_RADIUS && Math.abs(other.y - zone.y) < 2 * ZONE_RADIUS) {
+                draw(other, true, minX, minY, maxX, maxY);
+            }
+        }
+        recordChange(zone);
+        return true;
+    }
+
+    /**
+     * Adds and removes zones so the grid matches the given list. Does nothing,
+     * and keeps the version, if the zones are unchanged.
+     */
+    public synchronized void setZones(List<Point> target) {
+        if (zones.equals(target)) {
+            return;
+        }
+        Map<Point, Integer> surplus = new HashMap<>();
+        for (Point zone : zones) {
+            surplus.merge(zone, 1, Integer::sum);
+        }
+        List<Point> added = new ArrayList<>();
+        for (Point zone : target) {
+            if (surplus.merge(zone, -1, Integer::sum) < 0) {
+                added.add(zone);
+            }
+        }
+        for (Map.Entry<Point, Integer> entry : surplus.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                removeZone(entry.getKey());
+            }
+        }
+        for (Point zone : added) {
+            addZone(zone);
+        }
+    }
+
+    private void recordChange(Point zone) {
+        version++;
+        if (changes.size() == CHANGE_LOG_SIZE) {
+            changes.removeFirst();
+        }
+        changes.addLast(new Change(version, Math.max(0, zone.x - ZONE_RADIUS), Math.max(0, zone.y - ZONE_RADIUS),
+                Math.min(width, zone.x + ZONE_RADIUS), Math.min(height, zone.y + ZONE_RADIUS)));
+    }
+
+    /**
+     * Sets or clears a zone's disc within the clip rectangle. The disc spans
+     * [x - r, x + r) on both axes and contains the pixels at most r away.
+     */
+    private void draw(Point zone, boolean value, int clipMinX, int clipMinY, int clipMaxX, int clipMaxY) {
+        int fromY = Math.max(clipMinY, zone.y - ZONE_RADIUS);
+        int toY = Math.min(clipMaxY, zone.y + ZONE_RADIUS);
+        for (int y = fromY; y < toY; y++) {
+            int dy = y - zone.y;
+            int reach = (int) Math.sqrt(ZONE_RADIUS * ZONE_RADIUS - dy * dy);
+            int fromX = Math.max(Math.max(clipMinX, zone.x - ZONE_RADIUS), zone.x - reach);
+            int toX = Math.min(Math.min(clipMaxX, zone.x + ZONE_RADIUS), zone.x + reach + 1);
+            if (fromX < toX) {
+                fill(y * width + fromX, y * width + toX, value);
+            }
+        }
+    }
+
+    /**
+     * Sets or clears the bits from (inclusive) to (exclusive).
+     */
+    private void fill(int from, int to, boolean value) {
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        for (int word = first; word <= last; word++) {
+            long mask = -1L;
+            if (word == first) {
+                mask &= -1L << from;
+            }
+            if (word == last) {
+                mask &= -1L >>> (63 - ((to - 1) & 63));
+            }
+            bits[word] = value ? bits[word] | mask : bits[word] & ~mask;
+        }
+    }
+}
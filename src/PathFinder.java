@@ -1,7 +1,22 @@
+import java.io.File;
 import java.util.*;
 
 public class PathFinder {
-    
+
+    /** Search workspaces, reused by later queries on the same thread. */
+    private static final ThreadLocal<GridSearchEngine> ENGINES = new ThreadLocal<>();
+
+    private static final ThreadLocal<Integer> LAST_EXPANDED = ThreadLocal.withInitial(() -> 0);
+    private static final ThreadLocal<Integer> LAST_EXPANDED_BACKWARD = ThreadLocal.withInitial(() -> 0);
+
+    /** Abstract graph of the shared occupancy grid, built on the first hierarchical query. */
+    private static HierarchicalPathFinder hierarchy;
+
+    /** Landmark tables for the shared occupancy grid, built on the first landmark query. */
+    private static LandmarkHeuristic landmarks;
+    private static Collection<Point> landmarkCandidates;
+    private static File landmarkFile;
+
     /**
      * Represents a node in the pathfinding algorithm with comparable fScore.
      */
@@ -45,7 +60,7 @@ public class PathFinder {
                                                         List<Point> unsafeZones,
                                                         int width, int height) {
         List<DijkstraState> states = new ArrayList<>();
-        int[][] grid = initializeGrid(width, height, unsafeZones);
+        OccupancyGrid grid = OccupancyGrid.shared(width, height, unsafeZones);
 
         PriorityQueue<Node> openSet = new PriorityQueue<>();
         Map<Point, Double> gScore = new HashMap<>();
@@ -86,28 +101,11 @@ public class PathFinder {
         return states;
     }
 
-    /**
-     * Initializes the grid with obstacles based on unsafe zones.
-     */
-    private static int[][] initializeGrid(int width, int height, List<Point> unsafeZones) {
-        int[][] grid = new int[width][height];
-        for (Point p : unsafeZones) {
-            for (int x = Math.max(0, p.x - 25); x < Math.min(width, p.x + 25); x++) {
-                for (int y = Math.max(0, p.y - 25); y < Math.min(height, p.y + 25); y++) {
-                    if (distance(x, y, p.x, p.y) <= 25) {
-                        grid[x][y] = -1;
-                    }
-                }
-            }
-        }
-        return grid;
-    }
-
     /**
      * Processes a single neighbor point during pathfinding.
      */
     private static void processNeighbor(Point current, int dx, int dy,
-                                      int[][] grid, int width, int height,
+                                      OccupancyGrid grid, int width, int height,
                                       Point destination,
                                       Map<Point, Double> gScore,
                                       Map<Point, Point> cameFrom,
@@ -116,7 +114,7 @@ public class PathFinder {
         int ny = current.y + dy * 5;
 
         // Check boundaries and obstacles
-        if (nx < 0 || nx >= width || ny < 0 || ny >= height || grid[nx][ny] == -1) {
+        if (nx < 0 || nx >= width || ny < 0 || ny >= height || grid.isBlocked(nx, ny)) {
             return;
         }
 
@@ -148,90 +146,153 @@ public class PathFinder {
      * Calculates Euclidean distance between two points.
      */
     private static double distance(Point p1, Point p2) {
-        return Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2));
+        return VectorKernels.pointDistance(p1.x, p1.y, p2.x, p2.y);
     }
 
     /**
-     * Calculates Euclidean distance between coordinates.
+     * Calculates the shortest path using A* on the 5-pixel movement lattice.
      */
-    private static double distance(int x1, int y1, int x2, int y2) {
-        return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    public static List<Point> calculatePath(Point start, Point destination,
+    		List<Point> unsafeZones,
+    		int width, int height) {
+    	return calculatePath(start, destination, unsafeZones, width, height, GridSearchEngine.SearchMode.ASTAR);
     }
 
     /**
-     * Calculates the shortest path using Dijkstra's algorithm.
+     * Calculates a path with the given search mode. A* keeps the original
+     * planner's weighted heuristic, so its routes may be longer than necessary;
+     * the other modes run at heuristic weight 1. Jump Point Search, bidirectional
+     * and landmark search then return shortest routes on the 5-pixel lattice, and
+     * landmark search expands the fewest points when zones force detours. The
+     * hierarchical search returns near-shortest routes on maps of any size.
      */
     public static List<Point> calculatePath(Point start, Point destination,
     		List<Point> unsafeZones,
-    		int width, int height) {
-    	// Initialize data structures
-    	int[][] grid = initializeGrid(width, height, unsafeZones);
-    	PriorityQueue<Node> openSet = new PriorityQueue<>();
-    	Map<Point, Double> gScore = new HashMap<>();
-    	Map<Point, Point> cameFrom = new HashMap<>();
-
-    	// Initialization
-    	gScore.put(start, 0.0);
-    	openSet.add(new Node(start, distance(start, destination)));
-
-    	while (!openSet.isEmpty()) {
-    		Point current = openSet.poll().point;
-
-    		// Check if we've reached the destination
-    		if (distance(current, destination) < 10) {
-    			// Reconstruct path
-    			return reconstructPath(cameFrom, current, start);
-    		}
+    		int width, int height, GridSearchEngine.SearchMode mode) {
+    	return calculatePath(start, destination, unsafeZones, width, height, mode,
+    			mode == GridSearchEngine.SearchMode.ASTAR ? GridSearchEngine.LEGACY_HEURISTIC_WEIGHT : 1);
+    }
 
-    		// Explore neighbors
-    		for (int dx = -1; dx <= 1; dx++) {
-    			for (int dy = -1; dy <= 1; dy++) {
-    				if (dx == 0 && dy == 0) continue;
-
-    				int nx = current.x + dx * 5;
-    				int ny = current.y + dy * 5;
-
-    				// Check boundaries and obstacles
-    				if (nx < 0 || nx >= width || ny < 0 || ny >= height || grid[nx][ny] == -1) {
-    					continue;
-    				}
-
-    				Point neighbor = new Point(nx, ny);
-    				double moveCost = (dx * dy == 0) ? 1 : Math.sqrt(2);
-    				double tentativeGScore = gScore.getOrDefault(current, Double.MAX_VALUE) + moveCost;
-
-    				if (tentativeGScore < gScore.getOrDefault(neighbor, Double.MAX_VALUE)) {
-    					cameFrom.put(neighbor, current);
-    					gScore.put(neighbor, tentativeGScore);
-    					double fScore = tentativeGScore + distance(neighbor, destination);
-    					openSet.add(new Node(neighbor, fScore));
-    				}
-    			}
+    /**
+     * Calculates a path with the given search mode and heuristic weight, e.g. to
+     * compare the points two modes expand at the same weight. The hierarchical
+     * search ignores the weight.
+     */
+    public static List<Point> calculatePath(Point start, Point destination,
+    		List<Point> unsafeZones,
+    		int width, int height, GridSearchEngine.SearchMode mode, double heuristicWeight) {
+    	GridSearchEngine engine = engine(width, height);
+    	engine.setHeuristicWeight(heuristicWeight);
+    	OccupancyGrid grid = OccupancyGrid.shared(width, height, unsafeZones);
+    	synchronized (grid) {
+    		if (mode == GridSearchEngine.SearchMode.HIERARCHICAL) {
+    			HierarchicalPathFinder finder = hierarchy(grid);
+    			List<Point> path = finder.findPath(start, destination);
+    			LAST_EXPANDED.set(finder.expanded());
+    			LAST_EXPANDED_BACKWARD.set(0);
+    			return path;
+    		}
+    		if (mode == GridSearchEngine.SearchMode.LANDMARK) {
+    			engine.setLandmarks(landmarks(grid));
     		}
+    		List<Point> path = engine.findPath(start, destination, grid, mode);
+    		LAST_EXPANDED.set(engine.expanded());
+    		LAST_EXPANDED_BACKWARD.set(engine.expandedBackward());
+    		return path;
     	}
+    }
 
-    	// If no path found
-    	return Collections.emptyList();
+    /**
+     * Number of lattice points the calling thread's last route query expanded.
+     */
+    public static int lastExpandedCount() {
+    	return LAST_EXPANDED.get();
     }
-    
+
     /**
-     * Reconstructs the path from cameFrom map
+     * Points the calling thread's last route query expanded from the start; all
+     * of them unless the query was bidirectional.
      */
-    private static List<Point> reconstructPath(Map<Point, Point> cameFrom, 
-                                             Point current, Point start) {
-        List<Point> path = new ArrayList<>();
-        path.add(current);
-        
-        while (cameFrom.containsKey(current)) {
-            current = cameFrom.get(current);
-            path.add(0, current); // Add to beginning to maintain order
-        }
-        
-        // Verify the path starts at the actual start point
-        if (!path.isEmpty() && !path.get(0).equals(start)) {
-            path.add(0, start);
-        }
-        
-        return path;
+    public static int lastExpandedForwardCount() {
+    	return LAST_EXPANDED.get() - LAST_EXPANDED_BACKWARD.get();
+    }
+
+    /**
+     * Points the backward search of the calling thread's last bidirectional
+     * query expanded from the destination; 0 for other modes.
+     */
+    public static int lastExpandedBackwardCount() {
+    	return LAST_EXPANDED_BACKWARD.get();
+    }
+
+    /**
+     * Sets the points landmark searches pick their landmarks from, such as the
+     * attractions, and where the landmark tables are kept between runs.
+     * @param tableFile File for the tables, or null to build them in memory only
+     */
+    public static synchronized void setLandmarkSource(Collection<Point> candidates, File tableFile) {
+    	landmarkCandidates = candidates == null ? null : new ArrayList<>(candidates);
+    	landmarkFile = tableFile;
+    	landmarks = null;
+    }
+
+    /**
+     * Loads or builds the landmark tables for the given zones ahead of the first
+     * landmark query, e.g. on a background thread at startup. The tables are
+     * computed without holding any lock, so route queries are not held up, and
+     * are kept only if the zones and candidates are still the same afterwards.
+     */
+    public static void prepareLandmarks(List<Point> unsafeZones, int width, int height) {
+    	OccupancyGrid grid = OccupancyGrid.shared(width, height, unsafeZones);
+    	List<Point> zones = grid.zones();
+    	int count = LandmarkHeuristic.DEFAULT_LANDMARKS;
+    	Collection<Point> candidates;
+    	File tableFile;
+    	synchronized (PathFinder.class) {
+    		if (landmarks != null && landmarks.covers(width, height, zones, landmarkCandidates, count)) {
+    			return;
+    		}
+    		candidates = landmarkCandidates;
+    		tableFile = landmarkFile;
+    	}
+
+    	LandmarkHeuristic built = tableFile == null
+    			? LandmarkHeuristic.build(width, height, zones, candidates, count)
+    			: LandmarkHeuristic.loadOrBuild(width, height, zones, candidates, count, tableFile);
+
+    	// Same lock order as route queries: the grid, then the landmark state
+    	synchronized (grid) {
+    		synchronized (PathFinder.class) {
+    			if (built.covers(grid, landmarkCandidates, count)) {
+    				landmarks = built;
+    			}
+    		}
+    	}
+    }
+
+    private static synchronized LandmarkHeuristic landmarks(OccupancyGrid grid) {
+    	int count = LandmarkHeuristic.DEFAULT_LANDMARKS;
+    	if (landmarks == null || !landmarks.covers(grid, landmarkCandidates, count)) {
+    		landmarks = landmarkFile == null
+    				? LandmarkHeuristic.build(grid, landmarkCandidates, count)
+    				: LandmarkHeuristic.loadOrBuild(grid, landmarkCandidates, count, landmarkFile);
+    	}
+    	return landmarks;
+    }
+
+    private static synchronized HierarchicalPathFinder hierarchy(OccupancyGrid grid) {
+    	if (hierarchy == null || hierarchy.grid() != grid) {
+    		hierarchy = new HierarchicalPathFinder(grid);
+    	}
+    	return hierarchy;
+    }
+
+    private static GridSearchEngine engine(int width, int height) {
+    	GridSearchEngine engine = ENGINES.get();
+    	if (engine == null || engine.width() != width || engine.height() != height) {
+    		engine = new GridSearchEngine(width, height);
+    		ENGINES.set(engine);
+    	}
+    	return engine;
     }
-}
\ No newline at end of file
+}
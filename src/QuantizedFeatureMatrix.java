@@ -0,0 +1,160 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Catalog feature matrix stored as one unsigned byte per dimension. Each dimension
+ * has its own offset and scale, so a stored value decodes as
+ * {@code offset[d] + scale[d] * code}. Rows take 80 bytes instead of 320 as floats
+ * or 640 as the doubles in ImageFeatures. Queries stay at full precision
+ * (asymmetric scoring): the query is folded with the scales once, so scoring a row
+ * needs no decoding. The best candidates can optionally be re-ranked exactly by
+ * a {@link RowScorer}, which need not keep full-precision rows on the heap.
+ */
+public class QuantizedFeatureMatrix {
+    private static final int DIMENSIONS = FeatureMatrix.DIMENSIONS;
+    private static final int LEVELS = 255;
+
+    /**
+     * Scores a query against a row at full precision, for re-ranking.
+     */
+    public interface RowScorer {
+        float score(float[] query, int row);
+    }
+
+    private final int rows;
+    private final RowScorer exact;
+    private final byte[] codes;
+    private final float[] offsets;
+    private final float[] scales;
+
+    /**
+     * Quantizes every row of the given matrix. The matrix itself is not kept.
+     * @param exact Scores candidates at full precision when re-ranking
+     */
+    public QuantizedFeatureMatrix(FeatureMatrix source, RowScorer exact) {
+        this.rows = source.size();
+        this.exact = exact;
+        this.codes = new byte[rows * DIMENSIONS];
+        this.offsets = new float[DIMENSIONS];
+        this.scales = new float[DIMENSIONS];
+
+        float[] min = new float[DIMENSIONS];
+        float[] max = new float[DIMENSIONS];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        float[] row = new float[DIMENSIONS];
+        for (int r = 0; r < rows; r++) {
+            source.copyRow(r, row, 0);
+            for (int d = 0; d < DIMENSIONS; d++) {
+                min[d] = Math.min(min[d], row[d]);
+                max[d] = Math.max(max[d], row[d]);
+            }
+        }
+        for (int d = 0; d < DIMENSIONS && rows > 0; d++) {
+            offsets[d] = min[d];
+            scales[d] = (max[d] - min[d]) / LEVELS;
+        }
+
+        for (int r = 0; r < rows; r++) {
+            source.copyRow(r, row, 0);
+            for (int d = 0; d < DIMENSIONS; d++) {
+                int code = scales[d] > 0 ? Math.round((row[d] - offsets[d]) / scales[d]) : 0;
+                codes[r * DIMENSIONS + d] = (byte) Math.max(0, Math.min(LEVELS, code));
+            }
+        }
+    }
+
+    private QuantizedFeatureMatrix(QuantizedFeatureMatrix quantized, RowScorer exact) {
+        this.rows = quantized.rows;
+        this.exact = exact;
+        this.codes = quantized.codes;
+        this.offsets = quantized.offsets;
+        this.scales = quantized.scales;
+    }
+
+    /**
+     * Returns a matrix sharing these codes that re-ranks with another scorer.
+     */
+    public QuantizedFeatureMatrix rescoredBy(RowScorer exact) {
+        return new QuantizedFeatureMatrix(this, exact);
+    }
+
+    /**
+     * Number of rows in the matrix.
+     */
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * Bytes used by the quantized vectors and their per-dimension parameters.
+     */
+    public long memoryBytes() {
+        return codes.length + (long) (offsets.length + scales.length) * Float.BYTES;
+    }
+
+    /**
+     * Selects the k rows most similar to the query.
+     * @param query  Query encoded with {@link FeatureMatrix#encodeQuery}
+     * @param k      Number of rows to keep
+     * @param rerank Number of quantized candidates re-scored exactly; 0 returns quantized scores
+     * @return       Selector holding the best rows (call {@link TopKSelector#sort()} to rank them)
+     */
+    public TopKSelector topK(float[] query, int k, int rerank) {
+        float[] folded = new float[DIMENSIONS];
+        float bias = 0;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            folded[d] = query[d] * scales[d];
+            bias += query[d] * offsets[d];
+        }
+
+        TopKSelector candidates = new TopKSelector(Math.max(k, rerank));
+        for (int row = 0, offset = 0; row < size(); row++, offset += DIMENSIONS) {
+            candidates.offer(row, bias + VectorKernels.dotUnsigned(folded, codes, offset, DIMENSIONS));
+        }
+        if (rerank <= 0) {
+            TopKSelector best = new TopKSelector(k);
+            best.merge(candidates);
+            return best;
+        }
+
+        TopKSelector best = new TopKSelector(k);
+        for (int i = 0; i < candidates.size(); i++) {
+            int row = candidates.id(i);
+            best.offer(row, exact.score(query, row));
+        }
+        return best;
+    }
+
+    /**
+     * Measures how often the quantized top-k contains the exact top-k rows, using
+     * sampled catalog rows as queries.
+     * @param reference Full-precision matrix with the same rows
+     * @param queries   Number of sampled queries
+     * @param k         Result size compared
+     * @param rerank    Re-rank depth passed to {@link #topK}
+     * @param seed      Seed for sampling
+     * @return          Fraction of exact top-k rows also returned by the quantized search
+     */
+    public double measureAgreement(FeatureMatrix reference, int queries, int k, int rerank, long seed) {
+        Random random = new Random(seed);
+        float[] query = new float[DIMENSIONS];
+        int found = 0;
+        int expected = 0;
+        for (int q = 0; q < queries && size() > 0; q++) {
+            reference.queryVector(random.nextInt(size()), query, 0);
+            TopKSelector best = reference.topK(query, k);
+            TopKSelector quantized = topK(query, k, rerank);
+            expected += best.size();
+            for (int i = 0; i < best.size(); i++) {
+                for (int j = 0; j < quantized.size(); j++) {
+                    if (best.id(i) == quantized.id(j)) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        return expected == 0 ? 1 : (double) found / expected;
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32C;
+
+/**
+ * Size-bounded LRU cache of similarity query results. Entries are keyed by a
+ * content hash of the uploaded image bytes together with the catalog index
+ * version, so re-uploading the same photo returns instantly while any catalog
+ * change naturally misses.
+ */
+public class QueryResultCache {
+
+    /**
+     * Cache key: image content hash and catalog version.
+     */
+    private static final class Key {
+        final long contentHash;
+        final long indexVersion;
+
+        Key(long contentHash, long indexVersion) {
+            this.contentHash = contentHash;
+            this.indexVersion = indexVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return contentHash == other.contentHash && indexVersion == other.indexVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(contentHash * 31 + indexVersion);
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<Key, List<String>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries Number of query results kept before the least recently used is evicted
+     */
+    public QueryResultCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<String>> eldest) {
+                if (size() > QueryResultCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Hashes the content of a file with CRC32C and Adler32 in a single read.
+     * The file length is mixed in as well.
+     */
+    public static long contentHash(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        Adler32 adler = new Adler32();
+        long length = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                adler.update(buffer, 0, read);
+                length += read;
+            }
+        }
+        return ((crc.getValue() << 32) | adler.getValue()) ^ (length * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Returns the cached matches for the image and catalog version, or null on a miss.
+     */
+    public synchronized List<String> get(long contentHash, long indexVersion) {
+        List<String> matches = entries.get(new Key(contentHash, indexVersion));
+        if (matches == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return matches;
+    }
+
+    /**
+     * Stores the matches computed for the image and catalog version.
+     */
+    public synchronized void put(long contentHash, long indexVersion, List<String> matches) {
+        entries.put(new Key(contentHash, indexVersion), Collections.unmodifiableList(new ArrayList<>(matches)));
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("QueryResultCache[size=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                entries.size(), maxEntries, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.Arrays;
+
+/**
+ * Average red, green and blue values of each cell of a 4x4 grid, sampled on
+ * every other row and column.
+ */
+public class SpatialGridExtractor implements FeatureExtractor {
+    private static final int GRID_SIZE = AdvancedImageComparator.GRID_SIZE;
+
+    // Columns sampled in each row and the grid column each belongs to
+    private int[] columns = new int[0];
+    private int[] columnCells = new int[0];
+    private int columnCount;
+    private int cellHeight;
+    private final double[] sums = new double[GRID_SIZE * GRID_SIZE * 3];
+    private final int[] counts = new int[GRID_SIZE * GRID_SIZE];
+
+    @Override
+    public FeatureExtractor.FeatureFamily family() {
+        return FeatureExtractor.FeatureFamily.SPATIAL;
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.3;
+    }
+
+    @Override
+    public int dimensions() {
+        return GRID_SIZE * GRID_SIZE * 3;
+    }
+
+    @Override
+    public void begin(int width, int height) {
+        if (columns.length < width) {
+            columns = new int[width];
+            columnCells = new int[width];
+        }
+        int cellWidth = width / GRID_SIZE;
+        columnCount = 0;
+        for (int gx = 0; gx < GRID_SIZE; gx++) {
+            for (int x = gx * cellWidth; x < (gx + 1) * cellWidth; x += 2) {
+                columns[columnCount] = x;
+                columnCells[columnCount++] = gx;
+            }
+        }
+        cellHeight = height / GRID_SIZE;
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+    }
+
+    @Override
+    public boolean needsRow(int y) {
+        int gy = cellHeight > 0 ? y / cellHeight : GRID_SIZE;
+        return gy < GRID_SIZE && ((y - gy * cellHeight) & 1) == 0;
+    }
+
+    @Override
+    public void acceptRow(int y, int[] rows, int width) {
+        double[] unit = FeaturePipeline.UNIT;
+        int offset = (y & 1) * width;
+        int rowCell = y / cellHeight * GRID_SIZE;
+        for (int i = 0; i < columnCount; i++) {
+            int argb = rows[offset + columns[i]];
+            int cell = rowCell + columnCells[i];
+            sums[cell * 3] += unit[(argb >> 16) & 0xFF];
+            sums[cell * 3 + 1] += unit[(argb >> 8) & 0xFF];
+            sums[cell * 3 + 2] += unit[argb & 0xFF];
+            counts[cell]++;
+        }
+    }
+
+    @Override
+    public double[] finish() {
+        double[] features = new double[GRID_SIZE * GRID_SIZE * 3];
+        for (int cell = 0; cell < counts.length; cell++) {
+            int count = counts[cell];
+            if (count > 0) {
+                features[cell * 3] = sums[cell * 3] / count;
+                features[cell * 3 + 1] = sums[cell * 3 + 1] / count;
+                features[cell * 3 + 2] = sums[cell * 3 + 2] / count;
+            }
+        }
+        return features;
+    }
+}
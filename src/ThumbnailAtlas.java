@@ -0,0 +1,472 @@
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Precomputed thumbnails of every catalog image packed into a few large pages.
+ * Each page is a file of raw ARGB pixels and the atlas file holds the table of
+ * where each thumbnail sits, so the results grid shows a thumbnail by pointing an
+ * ImageView viewport at its region instead of finding and decoding the original
+ * photo. Pages are memory-mapped and turned into images the first time they are shown.
+ *
+ * <p>Page files are never modified once written. When the catalog changes,
+ * unchanged thumbnails keep their cells and only new or changed ones are written,
+ * into a new page; the table is then replaced and pages no longer referenced are
+ * deleted. A page mapped by an atlas still in use is therefore never overwritten.
+ * Once too many cells belong to removed images, all thumbnails are repacked.
+ */
+public class ThumbnailAtlas {
+    private static final int MAGIC = 0x54525441; // "TRTA"
+    private static final int FORMAT_VERSION = 2;
+
+    // Thumbnails fit in a square cell of this size; pages hold at most PAGE_COLUMNS^2 cells
+    static final int CELL_SIZE = 100;
+    private static final int PAGE_COLUMNS = 20;
+
+    /**
+     * Location of one catalog thumbnail inside the atlas.
+     */
+    public static class Entry {
+        public final String name;
+        public final String fileName;
+        public final long checksum;
+        public final int page;
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+
+        Entry(String name, String fileName, long checksum, int page, int x, int y, int width, int height) {
+            this.name = name;
+            this.fileName = fileName;
+            this.checksum = checksum;
+            this.page = page;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * A decoded thumbnail before it is placed in a page.
+     */
+    private static class Thumbnail {
+        final int width;
+        final int height;
+        final int[] argb;
+
+        Thumbnail(int width, int height, int[] argb) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+        }
+    }
+
+    private final long catalogVersion;
+    private final long[] pageIds;
+    private final int[] pageWidths;
+    private final int[] pageHeights;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<String, Entry> byFileName = new HashMap<>();
+    private final IntBuffer[] pagePixels;
+    private final WritableImage[] pageImages;
+
+    private ThumbnailAtlas(long catalogVersion, long[] pageIds, IntBuffer[] pagePixels, int[] pageWidths,
+                           int[] pageHeights, List<Entry> entries) {
+        this.catalogVersion = catalogVersion;
+        this.pageIds = pageIds;
+        this.pagePixels = pagePixels;
+        this.pageWidths = pageWidths;
+        this.pageHeights = pageHeights;
+        this.entries = entries;
+        this.pageImages = new WritableImage[pagePixels.length];
+        for (Entry entry : entries) {
+            // Images that failed to decode have an empty cell and are not offered
+            if (entry.width > 0) {
+                byName.putIfAbsent(entry.name, entry);
+                byFileName.put(entry.fileName, entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the catalog version the thumbnails were generated for.
+     */
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    /**
+     * Returns the thumbnail of an attraction, or null if the atlas does not contain it.
+     */
+    public Entry find(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Creates a view showing just the given thumbnail.
+     */
+    public ImageView createView(Entry entry) {
+        ImageView view = new ImageView(page(entry.page));
+        view.setViewport(new Rectangle2D(entry.x, entry.y, entry.width, entry.height));
+        return view;
+    }
+
+    /**
+     * Returns a page as an image, filling it from the mapped file on first use.
+     */
+    public synchronized Image page(int page) {
+        if (pageImages[page] == null) {
+            WritableImage image = new WritableImage(pageWidths[page], pageHeights[page]);
+            image.getPixelWriter().setPixels(0, 0, pageWidths[page], pageHeights[page],
+                    PixelFormat.getIntArgbInstance(), pagePixels[page].duplicate(), pageWidths[page]);
+            pageImages[page] = image;
+        }
+        return pageImages[page];
+    }
+
+    /**
+     * Copies the pixels of a stored thumbnail.
+     */
+    private Thumbnail copy(Entry entry) {
+        IntBuffer pixels = pagePixels[entry.page].duplicate();
+        int[] argb = new int[entry.width * entry.height];
+        for (int row = 0; row < entry.height; row++) {
+            pixels.position((entry.y + row) * pageWidths[entry.page] + entry.x);
+            pixels.get(argb, row * entry.width, entry.width);
+        }
+        return new Thumbnail(entry.width, entry.height, argb);
+    }
+
+    /**
+     * Opens the atlas for the given catalog snapshot, bringing it up to date when it
+     * is missing or was built for another catalog version. Only thumbnails of new or
+     * changed images are decoded and written.
+     * @param index     Catalog snapshot the atlas must cover
+     * @param imageDir  Directory containing the catalog images
+     * @param atlasFile Atlas table file (created if missing); pages are stored next to it
+     * @param previous  Atlas currently in use, or null to read the existing file
+     * @return          Atlas matching the catalog, or null if it could not be created
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public static ThumbnailAtlas loadOrBuild(FeatureIndex index, File imageDir, File atlasFile,
+                                             ThumbnailAtlas previous) throws InterruptedException {
+        if (previous == null && atlasFile.exists()) {
+            try {
+                previous = read(atlasFile);
+            } catch (IOException e) {
+                System.err.println("Rebuilding thumbnail atlas, failed to read " + atlasFile + ": " + e.getMessage());
+            }
+        }
+        if (previous != null && previous.catalogVersion == index.getVersion()) {
+            return previous;
+        }
+
+        try {
+            ThumbnailAtlas updated = update(index, imageDir, atlasFile, previous);
+            deleteUnusedPages(atlasFile, updated);
+            return updated;
+        } catch (IOException e) {
+            System.err.println("Failed to build thumbnail atlas: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes pages for the thumbnails the previous atlas lacks, then a new table
+     * covering the whole catalog. Unchanged thumbnails stay in their pages unless
+     * the live cells fill less than half of those pages, in which case every
+     * thumbnail is repacked (copied, not decoded) into fresh pages.
+     */
+    private static ThumbnailAtlas update(FeatureIndex index, File imageDir, File atlasFile, ThumbnailAtlas previous)
+            throws IOException, InterruptedException {
+        File parent = atlasFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("could not create " + parent);
+        }
+
+        List<FeatureIndex.Entry> catalog = index.getEntries();
+        Entry[] placed = new Entry[catalog.size()];
+        List<Integer> missing = new ArrayList<>();
+        Map<Integer, Integer> pageMap = new LinkedHashMap<>();
+        for (int i = 0; i < catalog.size(); i++) {
+            FeatureIndex.Entry cell = catalog.get(i);
+            Entry stored = previous == null ? null : previous.byFileName.get(cell.fileName);
+            if (stored != null && stored.checksum == cell.checksum) {
+                pageMap.putIfAbsent(stored.page, pageMap.size());
+                placed[i] = stored;
+            } else {
+                missing.add(i);
+            }
+        }
+
+        long liveCells = catalog.size() - missing.size();
+        long pageCells = 0;
+        for (int page : pageMap.keySet()) {
+            pageCells += (long) (previous.pageWidths[page] / CELL_SIZE) * (previous.pageHeights[page] / CELL_SIZE);
+        }
+        if (liveCells * 2 < pageCells) {
+            // Too fragmented: repack everything
+            pageMap.clear();
+            missing.clear();
+            for (int i = 0; i < catalog.size(); i++) {
+                missing.add(i);
+            }
+        }
+
+        List<Long> pageIds = new ArrayList<>();
+        List<Integer> pageWidths = new ArrayList<>();
+        List<Integer> pageHeights = new ArrayList<>();
+        for (int page : pageMap.keySet()) {
+            pageIds.add(previous.pageIds[page]);
+            pageWidths.add(previous.pageWidths[page]);
+            pageHeights.add(previous.pageHeights[page]);
+        }
+        List<Entry> entries = new ArrayList<>(catalog.size());
+        for (int i = 0; i < catalog.size(); i++) {
+            Entry stored = placed[i];
+            entries.add(stored == null || !pageMap.containsKey(stored.page) ? null
+                    : new Entry(catalog.get(i).name, stored.fileName, stored.checksum, pageMap.get(stored.page),
+                            stored.x, stored.y, stored.width, stored.height));
+        }
+
+        int cellsPerPage = PAGE_COLUMNS * PAGE_COLUMNS;
+        int columns = Math.max(1, Math.min(PAGE_COLUMNS, (int) Math.ceil(Math.sqrt(missing.size()))));
+        long nextPageId = nextPageId(atlasFile);
+        CatalogIngestor ingestor = new CatalogIngestor();
+        for (int from = 0; from < missing.size(); from += cellsPerPage) {
+            List<Integer> cells = missing.subList(from, Math.min(missing.size(), from + cellsPerPage));
+            List<File> files = new ArrayList<>(cells.size());
+            Map<String, FeatureIndex.Entry> byFile = new HashMap<>();
+            for (int i : cells) {
+                FeatureIndex.Entry cell = catalog.get(i);
+                files.add(new File(imageDir, cell.fileName));
+                byFile.put(cell.fileName, cell);
+            }
+            List<Thumbnail> thumbnails = ingestor.ingest(files,
+                    file -> thumbnail(file, previous, byFile.get(file.getName())),
+                    (completed, total) -> { }, () -> false);
+
+            int page = pageIds.size();
+            int width = columns * CELL_SIZE;
+            int height = (cells.size() + columns - 1) / columns * CELL_SIZE;
+            int[] pixels = new int[width * height];
+            for (int c = 0; c < cells.size(); c++) {
+                Thumbnail thumbnail = thumbnails.get(c);
+                int x = c % columns * CELL_SIZE;
+                int y = c / columns * CELL_SIZE;
+                int w = thumbnail == null ? 0 : thumbnail.width;
+                int h = thumbnail == null ? 0 : thumbnail.height;
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(thumbnail.argb, row * w, pixels, (y + row) * width + x, w);
+                }
+                FeatureIndex.Entry cell = catalog.get(cells.get(c));
+                entries.set(cells.get(c), new Entry(cell.name, cell.fileName, cell.checksum, page, x, y, w, h));
+            }
+
+            long id = nextPageId++;
+            writePage(pageFile(atlasFile, id), pixels);
+            pageIds.add(id);
+            pageWidths.add(width);
+            pageHeights.add(height);
+        }
+
+        File tmp = new File(atlasFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(CELL_SIZE);
+            out.writeLong(index.getVersion());
+            out.writeInt(entries.size());
+            out.writeInt(pageIds.size());
+            for (int page = 0; page < pageIds.size(); page++) {
+                out.writeLong(pageIds.get(page));
+                out.writeInt(pageWidths.get(page));
+                out.writeInt(pageHeights.get(page));
+            }
+            for (Entry entry : entries) {
+                FeatureIndex.writeString(out, entry.name);
+                FeatureIndex.writeString(out, entry.fileName);
+                out.writeLong(entry.checksum);
+                out.writeInt(entry.page);
+                out.writeInt(entry.x);
+                out.writeInt(entry.y);
+                out.writeInt(entry.width);
+                out.writeInt(entry.height);
+            }
+        }
+        // The table is read into memory, never mapped, so it can always be replaced
+        Files.move(tmp.toPath(), atlasFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return read(atlasFile);
+    }
+
+    /**
+     * File holding the pixels of the page with the given id.
+     */
+    private static File pageFile(File atlasFile, long id) {
+        return new File(atlasFile.getPath() + ".p" + id);
+    }
+
+    /**
+     * Returns an id no existing page file uses.
+     */
+    private static long nextPageId(File atlasFile) {
+        long next = 0;
+        for (File file : pageFiles(atlasFile)) {
+            try {
+                next = Math.max(next, Long.parseLong(file.getName().substring(atlasFile.getName().length() + 2)) + 1);
+            } catch (NumberFormatException e) {
+                // Not a page file
+            }
+        }
+        return next;
+    }
+
+    private static List<File> pageFiles(File atlasFile) {
+        File[] files = atlasFile.getAbsoluteFile().getParentFile().listFiles();
+        List<File> pages = new ArrayList<>();
+        String prefix = atlasFile.getName() + ".p";
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().startsWith(prefix) && !file.getName().endsWith(".tmp")) {
+                pages.add(file);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Deletes page files the atlas does not reference. Pages still mapped by an
+     * older atlas may not be deletable on some platforms; they are retried the next
+     * time the atlas changes.
+     */
+    private static void deleteUnusedPages(File atlasFile, ThumbnailAtlas atlas) {
+        Set<String> used = new HashSet<>();
+        for (long id : atlas.pageIds) {
+            used.add(pageFile(atlasFile, id).getName());
+        }
+        for (File file : pageFiles(atlasFile)) {
+            if (!used.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a page's pixels to a temporary file and moves it into place.
+     */
+    private static void writePage(File pageFile, int[] pixels) throws IOException {
+        File tmp = new File(pageFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(pixels.length * Integer.BYTES);
+            buffer.asIntBuffer().put(pixels);
+            writeFully(channel, buffer);
+        }
+        Files.move(tmp.toPath(), pageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Produces the thumbnail of one catalog image, reusing the previous atlas when
+     * the image content is unchanged.
+     */
+    private static Thumbnail thumbnail(File file, ThumbnailAtlas previous, FeatureIndex.Entry cell)
+            throws IOException {
+        Entry stored = previous == null ? null : previous.byFileName.get(cell.fileName);
+        if (stored != null && stored.checksum == cell.checksum) {
+            return previous.copy(stored);
+        }
+
+        BufferedImage source = ImageLoader.readSubsampled(file, 2 * CELL_SIZE);
+        if (source == null) {
+            // No ImageIO reader; let JavaFX decode it at thumbnail size
+            Image image = ImageLoader.loadScaled(file, CELL_SIZE, CELL_SIZE);
+            if (image.isError()) {
+                throw new IOException("could not decode image", image.getException());
+            }
+            int w = (int) image.getWidth();
+            int h = (int) image.getHeight();
+            int[] argb = new int[w * h];
+            image.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), argb, 0, w);
+            return new Thumbnail(w, h, argb);
+        }
+
+        // Fit inside the cell preserving the aspect ratio, like a requested-size Image
+        double scale = Math.min((double) CELL_SIZE / source.getWidth(), (double) CELL_SIZE / source.getHeight());
+        int w = Math.max(1, Math.min(CELL_SIZE, (int) Math.round(source.getWidth() * scale)));
+        int h = Math.max(1, Math.min(CELL_SIZE, (int) Math.round(source.getHeight() * scale)));
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(source, 0, 0, w, h, null);
+        g.dispose();
+        return new Thumbnail(w, h, scaled.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    /**
+     * Reads the table of an atlas file and maps its pages, each page file separately.
+     */
+    static ThumbnailAtlas read(File atlasFile) throws IOException {
+        try {
+            ByteBuffer table = ByteBuffer.wrap(Files.readAllBytes(atlasFile.toPath()));
+            if (table.getInt() != MAGIC || table.getInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported thumbnail atlas format");
+            }
+            if (table.getInt() != CELL_SIZE) {
+                throw new IOException("thumbnails were generated at another size");
+            }
+            long catalogVersion = table.getLong();
+            int count = table.getInt();
+            int pageCount = table.getInt();
+
+            long[] pageIds = new long[pageCount];
+            IntBuffer[] pagePixels = new IntBuffer[pageCount];
+            int[] pageWidths = new int[pageCount];
+            int[] pageHeights = new int[pageCount];
+            for (int page = 0; page < pageCount; page++) {
+                pageIds[page] = table.getLong();
+                pageWidths[page] = table.getInt();
+                pageHeights[page] = table.getInt();
+                long bytes = (long) pageWidths[page] * pageHeights[page] * Integer.BYTES;
+                try (FileChannel channel = FileChannel.open(pageFile(atlasFile, pageIds[page]).toPath(),
+                        StandardOpenOption.READ)) {
+                    if (channel.size() != bytes) {
+                        throw new IOException("thumbnail page " + pageIds[page] + " has the wrong size");
+                    }
+                    pagePixels[page] = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes).asIntBuffer();
+                }
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(FeatureIndex.readString(table), FeatureIndex.readString(table),
+                        table.getLong(), table.getInt(), table.getInt(), table.getInt(),
+                        table.getInt(), table.getInt()));
+            }
+            return new ThumbnailAtlas(catalogVersion, pageIds, pagePixels, pageWidths, pageHeights, entries);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt thumbnail atlas", e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
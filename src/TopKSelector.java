@@ -0,0 +1,143 @@
+/**
+ * Keeps the K highest-scoring candidates seen so far.
+ * Candidates are held in a fixed-size binary min-heap over parallel id and score
+ * arrays, so offering a candidate costs O(log K) and allocates nothing. Ties are
+ * broken in favour of the lower id, matching a stable descending sort.
+ */
+public class TopKSelector {
+    private final int[] ids;
+    private final float[] scores;
+    private int size;
+
+    /**
+     * @param k Maximum number of candidates to keep
+     */
+    public TopKSelector(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.ids = new int[k];
+        this.scores = new float[k];
+    }
+
+    /**
+     * Maximum number of candidates kept.
+     */
+    public int capacity() {
+        return ids.length;
+    }
+
+    /**
+     * Number of candidates currently kept.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Clears the selector for reuse.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Lowest score a new candidate must beat once the selector is full.
+     */
+    public float threshold() {
+        return size < ids.length ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offers a candidate; it is kept if it ranks among the best K so far.
+     */
+    public void offer(int id, float score) {
+        if (size < ids.length) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (worse(ids[0], scores[0], id, score)) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Folds the candidates of another selector, e.g. from a parallel partition, into this one.
+     */
+    public void merge(TopKSelector other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Orders the kept candidates best first. Afterwards {@link #id(int)} and
+     * {@link #score(int)} return them by rank; call {@link #reset()} before offering again.
+     */
+    public void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    /**
+     * Id of the candidate at the given position.
+     */
+    public int id(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Score of the candidate at the given position.
+     */
+    public float score(int i) {
+        return scores[i];
+    }
+
+    /**
+     * True if candidate a ranks below candidate b.
+     */
+    private static boolean worse(int idA, float scoreA, int idB, float scoreB) {
+        return scoreA < scoreB || (scoreA == scoreB && idA > idB);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(ids[i], scores[i], ids[parent], scores[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) {
+                break;
+            }
+            if (child + 1 < end && worse(ids[child + 1], scores[child + 1], ids[child], scores[child])) {
+                child++;
+            }
+            if (!worse(ids[child], scores[child], ids[i], scores[i])) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,229 @@
+import java.nio.FloatBuffer;
+
+/**
+ * Distance and similarity kernels shared by image search, the KNN graphs and route
+ * planning. The loops keep four independent accumulators so the JIT can unroll
+ * them into vector registers; the buffer variants read direct or memory-mapped
+ * buffers in place, without copying them onto the heap.
+ */
+public final class VectorKernels {
+
+    private VectorKernels() {
+    }
+
+    /**
+     * Dot product of two equally long vectors.
+     */
+    public static double dot(double[] a, double[] b) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < a.length; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < a.length; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Squared Euclidean distance between two equally long vectors.
+     */
+    public static double squaredL2(double[] a, double[] b) {
+        return squaredL2(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Squared Euclidean distance between two vectors stored at offsets of larger arrays.
+     */
+    public static double squaredL2(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            double d0 = a[aOffset + i] - b[bOffset + i];
+            double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+            double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+            double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < length; i++) {
+            double d = a[aOffset + i] - b[bOffset + i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Euclidean distance between two equally long vectors.
+     */
+    public static double l2(double[] a, double[] b) {
+        return Math.sqrt(squaredL2(a, b));
+    }
+
+    /**
+     * Cosine similarity of two equally long vectors; 0 if either is all zeros.
+     */
+    public static double cosine(double[] a, double[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        double norms = Math.sqrt(normA) * Math.sqrt(normB);
+        return norms > 0 ? dot / norms : 0;
+    }
+
+    /**
+     * Euclidean distances from the query to each target.
+     * @param out Receives one distance per target
+     */
+    public static void l2(double[] query, double[][] targets, double[] out) {
+        for (int t = 0; t < targets.length; t++) {
+            out[t] = Math.sqrt(squaredL2(query, 0, targets[t], 0, query.length));
+        }
+    }
+
+    /**
+     * Dot product of two vectors stored at offsets of larger arrays.
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Squared Euclidean distance between two vectors stored at offsets of larger arrays.
+     */
+    public static float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            float d0 = a[aOffset + i] - b[bOffset + i];
+            float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+            float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+            float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < length; i++) {
+            float d = a[aOffset + i] - b[bOffset + i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot products of the query with consecutive rows of a row-major matrix.
+     * @param rows  Matrix data, one row of query.length values after another
+     * @param out   Receives one dot product per row
+     * @param count Number of rows to score
+     */
+    public static void dot(float[] query, float[] rows, float[] out, int count) {
+        int dimensions = query.length;
+        for (int row = 0, offset = 0; row < count; row++, offset += dimensions) {
+            out[row] = dot(query, 0, rows, offset, dimensions);
+        }
+    }
+
+    /**
+     * Dot product of a float vector with unsigned byte codes stored at an offset.
+     */
+    public static float dotUnsigned(float[] a, byte[] codes, int offset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[i] * (codes[offset + i] & 0xFF);
+            s1 += a[i + 1] * (codes[offset + i + 1] & 0xFF);
+            s2 += a[i + 2] * (codes[offset + i + 2] & 0xFF);
+            s3 += a[i + 3] * (codes[offset + i + 3] & 0xFF);
+        }
+        for (; i < length; i++) {
+            s0 += a[i] * (codes[offset + i] & 0xFF);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product of a heap vector with a vector stored at an index of a buffer.
+     */
+    public static float dot(float[] a, int aOffset, FloatBuffer b, int bIndex, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b.get(bIndex + i);
+            s1 += a[aOffset + i + 1] * b.get(bIndex + i + 1);
+            s2 += a[aOffset + i + 2] * b.get(bIndex + i + 2);
+            s3 += a[aOffset + i + 3] * b.get(bIndex + i + 3);
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b.get(bIndex + i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Squared Euclidean distance between a heap vector and a vector stored at an
+     * index of a buffer.
+     */
+    public static float squaredL2(float[] a, int aOffset, FloatBuffer b, int bIndex, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            float d0 = a[aOffset + i] - b.get(bIndex + i);
+            float d1 = a[aOffset + i + 1] - b.get(bIndex + i + 1);
+            float d2 = a[aOffset + i + 2] - b.get(bIndex + i + 2);
+            float d3 = a[aOffset + i + 3] - b.get(bIndex + i + 3);
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < length; i++) {
+            float d = a[aOffset + i] - b.get(bIndex + i);
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Squared Euclidean distances from the query to consecutive rows of a
+     * row-major matrix held in a buffer.
+     * @param rows  Matrix data, one row of query.length values after another
+     * @param out   Receives one distance per row
+     * @param count Number of rows to measure
+     */
+    public static void squaredL2(float[] query, FloatBuffer rows, float[] out, int count) {
+        int dimensions = query.length;
+        for (int row = 0, index = 0; row < count; row++, index += dimensions) {
+            out[row] = squaredL2(query, 0, rows, index, dimensions);
+        }
+    }
+
+    /**
+     * Euclidean distance between two points in the plane.
+     */
+    public static double pointDistance(double x1, double y1, double x2, double y2) {
+        double dx = x1 - x2;
+        double dy = y1 - y2;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}